@@ -0,0 +1,80 @@
+package net.alagris;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Partition of alphabet into equivalence classes induced by a set of range boundaries. Two symbols belong
+ * to the same class if no boundary separates them, hence every state of the graph that produced the
+ * boundaries treats them identically. Class of symbol <tt>x</tt> is the index of the first boundary
+ * greater or equal to <tt>x</tt> (or the number of boundaries if there is no such boundary).
+ * <p>
+ * Classes of all Unicode code points are found with a two-level lookup table. The code point is split into
+ * block (upper bits) and offset within block (lower 8 bits). Blocks consisting of the same classes share
+ * the same page, which keeps the table small, because most blocks lie entirely within a single class.
+ * Symbols outside of Unicode are binary searched.
+ */
+final class AlphabetClasses {
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int MAX_CODEPOINT = Character.MAX_CODE_POINT;
+    /**
+     * Sorted, distinct inclusive upper bounds of classes
+     */
+    final int[] boundaries;
+    /**
+     * Offset in {@link #pages} of the page corresponding to each block
+     */
+    private final int[] blocks;
+    private final int[] pages;
+
+    /**
+     * @param boundaries sorted and distinct
+     */
+    AlphabetClasses(int[] boundaries) {
+        this.boundaries = boundaries;
+        blocks = new int[(MAX_CODEPOINT >>> PAGE_BITS) + 1];
+        final HashMap<IntSeq, Integer> uniquePages = new HashMap<>();
+        int[] pages = new int[PAGE_SIZE];
+        int pagesSize = 0;
+        int cls = 0;
+        for (int block = 0; block < blocks.length; block++) {
+            final int[] page = new int[PAGE_SIZE];
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                final int codepoint = (block << PAGE_BITS) | i;
+                while (cls < boundaries.length && boundaries[cls] < codepoint) cls++;
+                page[i] = cls;
+            }
+            final Integer offset = uniquePages.get(new IntSeq(page));
+            if (offset == null) {
+                if (pagesSize == pages.length) pages = Arrays.copyOf(pages, pagesSize * 2);
+                System.arraycopy(page, 0, pages, pagesSize, PAGE_SIZE);
+                uniquePages.put(new IntSeq(page), pagesSize);
+                blocks[block] = pagesSize;
+                pagesSize += PAGE_SIZE;
+            } else {
+                blocks[block] = offset;
+            }
+        }
+        this.pages = Arrays.copyOf(pages, pagesSize);
+    }
+
+    /**
+     * Number of classes, including the one past the last boundary
+     */
+    int size() {
+        return boundaries.length + 1;
+    }
+
+    int classOf(int symbol) {
+        if (0 <= symbol && symbol <= MAX_CODEPOINT) {
+            return pages[blocks[symbol >>> PAGE_BITS] + (symbol & (PAGE_SIZE - 1))];
+        }
+        final int i = Arrays.binarySearch(boundaries, symbol);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    long memoryBytes() {
+        return 4L * (boundaries.length + blocks.length + pages.length);
+    }
+}
@@ -0,0 +1,100 @@
+package net.alagris;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Evaluation of many inputs in parallel on a {@link ForkJoinPool}. Inputs are split into chunks and each chunk
+ * is evaluated sequentially by one worker. The evaluated function only needs to be thread-safe (for instance
+ * {@link Evaluator#perThread} uses separate scratch memory for every worker thread). Results are returned in
+ * the same order as inputs and rejected inputs yield null.
+ */
+public final class BatchEvaluation {
+
+    /**
+     * Chunks smaller than this are never split, because the overhead of forking would outweigh the gain
+     */
+    private static final int MIN_CHUNK = 64;
+    /**
+     * Number of chunks per worker. More chunks balance the load better when inputs differ in length.
+     */
+    private static final int CHUNKS_PER_WORKER = 8;
+    /**
+     * Number of inputs of a stream that are evaluated together
+     */
+    static final int STREAMED_CHUNK = 1 << 14;
+
+    private BatchEvaluation() {
+    }
+
+    public static List<IntSeq> evaluateAll(List<IntSeq> inputs, Function<IntSeq, IntSeq> f, ForkJoinPool pool) {
+        if (!(inputs instanceof RandomAccess)) {
+            inputs = new ArrayList<>(inputs);
+        }
+        final IntSeq[] results = new IntSeq[inputs.size()];
+        if (results.length > 0) {
+            final int chunk = Math.max(MIN_CHUNK, results.length / (pool.getParallelism() * CHUNKS_PER_WORKER));
+            pool.invoke(new Chunk(inputs, results, f, 0, results.length, chunk));
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Evaluates arbitrarily many inputs in parallel, chunk by chunk, so that at most {@link #STREAMED_CHUNK}
+     * inputs and outputs are held in memory at once. Results are passed to the sink on the calling thread in
+     * the same order as inputs.
+     */
+    public static void evaluateAll(Iterator<IntSeq> inputs, Function<IntSeq, IntSeq> f, Consumer<IntSeq> sink,
+                                   ForkJoinPool pool) {
+        final ArrayList<IntSeq> chunk = new ArrayList<>(STREAMED_CHUNK);
+        while (inputs.hasNext()) {
+            chunk.clear();
+            while (chunk.size() < STREAMED_CHUNK && inputs.hasNext()) {
+                chunk.add(inputs.next());
+            }
+            for (IntSeq result : evaluateAll(chunk, f, pool)) {
+                sink.accept(result);
+            }
+        }
+    }
+
+    private static final class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final List<IntSeq> inputs;
+        final IntSeq[] results;
+        final Function<IntSeq, IntSeq> f;
+        final int fromInclusive;
+        final int toExclusive;
+        final int chunk;
+
+        Chunk(List<IntSeq> inputs, IntSeq[] results, Function<IntSeq, IntSeq> f, int fromInclusive,
+              int toExclusive, int chunk) {
+            this.inputs = inputs;
+            this.results = results;
+            this.f = f;
+            this.fromInclusive = fromInclusive;
+            this.toExclusive = toExclusive;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (toExclusive - fromInclusive <= chunk) {
+                for (int i = fromInclusive; i < toExclusive; i++) {
+                    results[i] = f.apply(inputs.get(i));
+                }
+            } else {
+                final int mid = (fromInclusive + toExclusive) >>> 1;
+                invokeAll(new Chunk(inputs, results, f, fromInclusive, mid, chunk),
+                        new Chunk(inputs, results, f, mid, toExclusive, chunk));
+            }
+        }
+    }
+}
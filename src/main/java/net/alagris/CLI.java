@@ -9,8 +9,19 @@ import org.antlr.v4.runtime.CharStreams;
 import org.github.jamm.MemoryMeter;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 import static net.alagris.LexUnicodeSpecification.*;
 
@@ -22,6 +33,10 @@ public class CLI {
 	public static class OptimisedLexTransducer<N, G extends IntermediateGraph<Pos, E, P, N>> {
 		public final LexUnicodeSpecification<N, G> specs;
 		final ParserListener<LexPipeline<N, G>, Var<N, G>, Pos, E, P, Integer, IntSeq, Integer, N, G> parser;
+		private final ConcurrentHashMap<String, SpecializedTransducer> specialized = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<String, EvaluationCache> caches = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<String, Integer> lazyDfaCapacities = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<String, Function<IntSeq, IntSeq>> lazyDfa = new ConcurrentHashMap<>();
 
 		public OptimisedLexTransducer(LexUnicodeSpecification<N, G> specs) throws CompilationError {
 			this.specs = specs;
@@ -45,6 +60,35 @@ public class CLI {
 			parser.parse(source);
 		}
 
+		/**
+		 * Definitions parsed from now on are cached in the given directory (see
+		 * {@link CompilationCache}), so that unchanged definitions do not need to be
+		 * built again next time.
+		 */
+		public CompilationCache<N, G> enableCompilationCache(Path directory) throws IOException {
+			final CompilationCache<N, G> cache = new CompilationCache<>(specs, directory);
+			parser.setDefinitionCache(cache);
+			return cache;
+		}
+
+		/**
+		 * Saves all variables and pipelines (see
+		 * {@link LexUnicodeSpecification#writeSnapshot}). Specialized transducers and
+		 * caches of transducers are not saved.
+		 */
+		public void saveSnapshot(DataOutputStream out) throws IOException, CompilationError {
+			specs.writeSnapshot(out);
+		}
+
+		/**
+		 * Restores variables and pipelines saved with {@link #saveSnapshot}, which
+		 * takes the place of {@link #parse} followed by
+		 * {@link #checkStrongFunctionality()}
+		 */
+		public void loadSnapshot(DataInputStream in) throws IOException, CompilationError {
+			specs.readSnapshot(in);
+		}
+
 		public void checkStrongFunctionality() throws CompilationError {
 			for (Var<N, G> var : specs.variableAssignments.values()) {
 				specs.checkStrongFunctionality(specs.getOptimised(var));
@@ -57,8 +101,120 @@ public class CLI {
 		}
 
 		public IntSeq run(String name, IntSeq input) {
-			return specs.evaluate(getOptimisedTransducer(name), input);
+			final EvaluationCache cache = caches.get(name);
+			return cache == null ? runUncached(name, input) : cache.evaluate(input);
+		}
+
+		private IntSeq runUncached(String name, IntSeq input) {
+			final SpecializedTransducer specialized = this.specialized.get(name);
+			if (specialized != null) {
+				return specialized.evaluate(input);
+			}
+			final Function<IntSeq, IntSeq> lazyDfa = this.lazyDfa.get(name);
+			if (lazyDfa != null) {
+				return lazyDfa.apply(input);
+			}
+			return specs.borrowVariable(name).getEvaluator().apply(input);
+		}
+
+		/**
+		 * Opt-in mode in which the nondeterministic transducer is evaluated by lazily
+		 * determinizing it (see {@link LazyDfaEvaluator}). Every thread has its own
+		 * cache of determinized states.
+		 * 
+		 * @return false if the transducer is deterministic, in which case there is
+		 *         nothing to determinize
+		 */
+		public boolean determinizeLazily(String name) {
+			return determinizeLazily(name, LazyDfaEvaluator.DEFAULT_CAPACITY);
+		}
+
+		/**
+		 * @param capacity maximal number of cached states per thread
+		 */
+		public boolean determinizeLazily(String name, int capacity) {
+			final CompiledGraph g = getCompiledTransducer(name);
+			if (g.isDeterministic()) {
+				return false;
+			}
+			lazyDfa.put(name, LazyDfaEvaluator.perThread(g, capacity));
+			lazyDfaCapacities.put(name, capacity);
+			return true;
+		}
 
+		/**
+		 * Opt-in mode in which the transducer is evaluated by dedicated code generated
+		 * at runtime (see {@link SpecializedTransducer}). It may be enabled while the
+		 * transducer is run concurrently.
+		 * 
+		 * @return false if the transducer could not be specialized, in which case it
+		 *         will still be interpreted
+		 */
+		public boolean specialize(String name) {
+			return specialize(name, SpecializedTransducer.DEFAULT_MAX_RANGES);
+		}
+
+		public boolean specialize(String name, int maxRanges) {
+			final SpecializedTransducer specialized = SpecializedTransducer.compile(getCompiledTransducer(name),
+					maxRanges);
+			if (specialized == null) {
+				return false;
+			}
+			this.specialized.put(name, specialized);
+			return true;
+		}
+
+		/**
+		 * Memoizes up to the given number of results of {@link #run(String, IntSeq)}
+		 * (see {@link EvaluationCache}). It may be enabled while the transducer is run
+		 * concurrently. Zero disables the cache.
+		 */
+		public void setCacheCapacity(String name, int capacity) {
+			if (capacity == 0) {
+				caches.remove(name);
+			} else {
+				caches.put(name, new EvaluationCache(input -> runUncached(name, input), capacity));
+			}
+		}
+
+		/**
+		 * @return cache with hit and miss statistics or null if caching is disabled
+		 */
+		public EvaluationCache getCache(String name) {
+			return caches.get(name);
+		}
+
+		/**
+		 * Evaluates UTF-8 encoded input directly from the buffer (see
+		 * {@link CompiledGraph#toUtf8()})
+		 */
+		public IntSeq run(String name, ByteBuffer utf8) {
+			return specs.borrowVariable(name).getCompiledUtf8().evaluate(utf8);
+		}
+
+		/**
+		 * Evaluates all inputs in parallel on the common {@link ForkJoinPool}.
+		 * 
+		 * @return outputs in the same order as inputs (null for rejected inputs)
+		 */
+		public List<IntSeq> evaluateAll(String name, List<IntSeq> inputs) {
+			return evaluateAll(name, inputs, ForkJoinPool.commonPool());
+		}
+
+		public List<IntSeq> evaluateAll(String name, List<IntSeq> inputs, ForkJoinPool pool) {
+			return BatchEvaluation.evaluateAll(inputs, input -> run(name, input), pool);
+		}
+
+		/**
+		 * Evaluates inputs in parallel, chunk by chunk, passing outputs to the sink in
+		 * the same order as inputs
+		 */
+		public void evaluateAll(String name, Stream<IntSeq> inputs, Consumer<IntSeq> sink) {
+			evaluateAll(name, inputs, sink, ForkJoinPool.commonPool());
+		}
+
+		public void evaluateAll(String name, Stream<IntSeq> inputs, Consumer<IntSeq> sink, ForkJoinPool pool) {
+			BatchEvaluation.evaluateAll(inputs.iterator(), input -> run(name, input), sink, pool);
 		}
 
 		public Var<N, G> getTransducer(String id) {
@@ -76,10 +232,37 @@ public class CLI {
 			LearnLibCompatibility.visualize(getTransducer(id).graph, Pos.NONE, Pos.NONE);
 		}
 
+		/**
+		 * Compiles all variables and pipelines into a runtime that no longer references
+		 * the compiler and can be shared between threads (see
+		 * {@link FrozenLexTransducer}). The compiler itself is not thread-safe, hence it
+		 * should be frozen before serving concurrent requests.
+		 */
+		public FrozenLexTransducer freeze() throws CompilationError {
+			final HashMap<String, CompiledGraph> transducers = new HashMap<>();
+			for (Var<N, G> var : specs.variableAssignments.values()) {
+				specs.getOptimised(var);
+				transducers.put(var.name, var.getCompiled());
+			}
+			final HashMap<String, Integer> cacheCapacities = new HashMap<>();
+			for (Map.Entry<String, EvaluationCache> cache : caches.entrySet()) {
+				cacheCapacities.put(cache.getKey(), cache.getValue().getCapacity());
+			}
+			final HashMap<String, CompiledPipeline> pipelines = new HashMap<>();
+			for (Map.Entry<String, LexPipeline<N, G>> pipeline : specs.getPipelines().entrySet()) {
+				pipelines.put(pipeline.getKey(), pipeline.getValue().compile());
+			}
+			return new FrozenLexTransducer(transducers, specialized, lazyDfaCapacities, cacheCapacities, pipelines);
+		}
+
 		public RangedGraph<Pos, Integer, E, P> getOptimisedTransducer(String name) {
 			return specs.borrowVariable(name).getOptimal();
 		}
 
+		public CompiledGraph getCompiledTransducer(String name) {
+			return specs.borrowVariable(name).getCompiled();
+		}
+
 		/**
 		 * @param name should not contain the @ sign as it is already implied by this
 		 *             methods
@@ -278,8 +461,19 @@ public class CLI {
 		spec.registerExternalFunction("import", (pos, text) -> {
 			if (text.size() != 1)
 				throw new CompilationError.IllegalInformantSize(text, 1);
-			try (FileInputStream stream = new FileInputStream(text.get(0).l().toUnicodeString())) {
-				return spec.decompressBinary(pos, new DataInputStream(stream));
+			final String path = text.get(0).l().toUnicodeString();
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+				in.mark(4);
+				final int magic = in.readInt();
+				in.reset();
+				if (magic == LexUnicodeSpecification.OPTIMISED_MAGIC) {
+					return spec.loadOptimised(pos, in);
+				} else if (magic == LexUnicodeSpecification.COMPACT_MAGIC) {
+					return spec.decompressCompact(pos, in);
+				} else if (Integer.reverseBytes(magic) == MappedTransducer.MAGIC) {
+					return spec.loadOptimised(pos, MappedTransducer.open(Paths.get(path)).toRangedGraph(pos));
+				}
+				return spec.decompressBinary(pos, in);
 			} catch (IOException e) {
 				throw new CompilationError.ParseException(pos, e);
 			}
@@ -299,18 +493,41 @@ public class CLI {
 		}
 		final OptimisedHashLexTransducer optimised = new OptimisedHashLexTransducer(
 				System.getenv("NO_MINIMIZATION") == null,0,Integer.MAX_VALUE, makeEmptyExternalPipelineFunction());
-		if (System.getenv("MODE").equals("Thrax")) {
+		if (System.getenv("DENSE_TABLE") != null) {
+			optimised.specs.setDenseTableLimit(Integer.parseInt(System.getenv("DENSE_TABLE")));
+		}
+		optimised.specs.setAlphabetClasses(System.getenv("ALPHABET_CLASSES") != null);
+		if (System.getenv("PIPELINE_FUSION") != null) {
+			optimised.specs.setPipelineFusionBudget(Integer.parseInt(System.getenv("PIPELINE_FUSION")));
+		}
+		final String mode = System.getenv("MODE");
+		if ("Thrax".equals(mode)) {
 //			final ThraxParser<?, ?> parser = ThraxParser.parse(new File(args[0]),CharStreams.fromFileName(args[0]), optimised.specs);
 //			System.out.println(parser.toSolomonoff());
 		} else {
 			
 			final long parsingBegin = System.currentTimeMillis();
-			optimised.parse(CharStreams.fromFileName(args[0]));
-			System.out.println("Parsing took " + (System.currentTimeMillis() - parsingBegin) + " miliseconds");
+			final boolean snapshot;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])))) {
+				in.mark(4);
+				snapshot = in.available() >= 4 && in.readInt() == LexUnicodeSpecification.SNAPSHOT_MAGIC;
+				in.reset();
+				if (snapshot) {
+					optimised.loadSnapshot(in);
+					System.out.println("Loading snapshot took " + (System.currentTimeMillis() - parsingBegin) + " miliseconds");
+				}
+			}
+			if (!snapshot) {
+				if (System.getenv("CACHE_DIR") != null) {
+					optimised.enableCompilationCache(Paths.get(System.getenv("CACHE_DIR")));
+				}
+				optimised.parse(CharStreams.fromFileName(args[0]));
+				System.out.println("Parsing took " + (System.currentTimeMillis() - parsingBegin) + " miliseconds");
+			}
 			final long optimisingBegin = System.currentTimeMillis();
 			System.out.println("Optimising took " + (System.currentTimeMillis() - optimisingBegin) + " miliseconds");
 			final long ambiguityCheckingBegin = System.currentTimeMillis();
-			optimised.checkStrongFunctionality();
+			if (!snapshot) optimised.checkStrongFunctionality();
 			System.out.println(
 					"Checking ambiguity " + (System.currentTimeMillis() - ambiguityCheckingBegin) + " miliseconds");
 			final long typecheckingBegin = System.currentTimeMillis();
@@ -318,6 +535,35 @@ public class CLI {
 					.println("Typechecking took " + (System.currentTimeMillis() - typecheckingBegin) + " miliseconds");
 			System.out.println(
 					"All loaded correctly! Total time " + (System.currentTimeMillis() - parsingBegin) + " miliseconds");
+			if ("server".equals(mode)) {
+				final int port = System.getenv("PORT") == null ? 0 : Integer.parseInt(System.getenv("PORT"));
+				final EvaluationServer server = new EvaluationServer(optimised.freeze(), port);
+				// the server keeps running on its own thread
+				System.out.println("Listening on port " + server.getPort());
+				return;
+			}
+			if ("batch".equals(mode)) {
+				final FrozenLexTransducer frozen = optimised.freeze();
+				final String name = System.getenv("FUNCTION");
+				final Function<IntSeq, IntSeq> f;
+				if (name != null && name.startsWith("@") && frozen.getPipeline(name.substring(1)) != null) {
+					f = frozen.getPipeline(name.substring(1))::evaluate;
+				} else if (name != null && frozen.getTransducer(name) != null) {
+					f = input -> frozen.run(name, input);
+				} else {
+					System.err.println("No such function!");
+					System.exit(-1);
+					return;
+				}
+				final int column = System.getenv("COLUMN") == null ? -1 : Integer.parseInt(System.getenv("COLUMN"));
+				final long evaluationBegin = System.currentTimeMillis();
+				final FileBatchEvaluation.Result result = FileBatchEvaluation.evaluate(
+						Paths.get(System.getenv("INPUT")), Paths.get(System.getenv("OUTPUT")), f, column,
+						ForkJoinPool.commonPool());
+				System.out.println("Evaluated " + result.records + " records (" + result.rejected + " rejected) in "
+						+ (System.currentTimeMillis() - evaluationBegin) + " miliseconds");
+				return;
+			}
 			final MemoryMeter meter = new MemoryMeter();
 			try (final Scanner sc = new Scanner(System.in)) {
 				while (sc.hasNextLine()) {
@@ -350,19 +596,80 @@ public class CLI {
 							final long size = +meter.measureDeep(r.indexToState) + meter.measureDeep(r.accepting)
 									+ meter.measure(r.graph);
 							System.out.println(size + " bytes");
+							final CompiledGraph c = optimised.getCompiledTransducer(remaining);
+							System.out.println("compiled " + c.memoryBytes() + " bytes (dense table "
+									+ c.denseTableBytes() + " bytes for symbols below " + c.getDenseLimit()
+									+ ", class table " + c.classTableBytes() + " bytes for " + c.classCount()
+									+ " classes)");
 						}
 						break;
 					}
 					case ":export": {
 						Var<net.alagris.HashMapIntermediateGraph.N<Pos, E>, HashMapIntermediateGraph<Pos, E, P>> g = optimised
 								.getTransducer(remaining);
-						try (FileOutputStream f = new FileOutputStream(remaining + ".star")) {
-							optimised.specs.compressBinary(g.graph, new DataOutputStream(new BufferedOutputStream(f)));
+						try (DataOutputStream out = new DataOutputStream(
+								new BufferedOutputStream(new FileOutputStream(remaining + ".star")))) {
+							optimised.specs.compressBinary(g.graph, out);
 						} catch (IOException e) {
 							e.printStackTrace();
 						}
 						break;
 					}
+					case ":snapshot": {
+						try (DataOutputStream out = new DataOutputStream(
+								new BufferedOutputStream(new FileOutputStream(remaining)))) {
+							optimised.saveSnapshot(out);
+						} catch (IOException | IllegalArgumentException e) {
+							e.printStackTrace();
+						}
+						break;
+					}
+					case ":export_compact": {
+						Var<net.alagris.HashMapIntermediateGraph.N<Pos, E>, HashMapIntermediateGraph<Pos, E, P>> g = optimised
+								.getTransducer(remaining);
+						if (g == null) {
+							System.out.println("No such function!");
+							break;
+						}
+						try (OutputStream out = new BufferedOutputStream(new FileOutputStream(remaining + ".star"))) {
+							optimised.specs.compressCompact(g.graph, out, true);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+						break;
+					}
+					case ":export_optimised": {
+						final Var<net.alagris.HashMapIntermediateGraph.N<Pos, E>, HashMapIntermediateGraph<Pos, E, P>> v = optimised
+								.getTransducer(remaining);
+						if (v == null) {
+							System.out.println("No such function!");
+							break;
+						}
+						try (DataOutputStream out = new DataOutputStream(
+								new BufferedOutputStream(new FileOutputStream(remaining + ".star")))) {
+							optimised.specs.compressOptimised(optimised.specs.getOptimised(v), out);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+						break;
+					}
+					case ":export_mapped": {
+						final Var<net.alagris.HashMapIntermediateGraph.N<Pos, E>, HashMapIntermediateGraph<Pos, E, P>> v = optimised
+								.getTransducer(remaining);
+						final CompiledGraph c = v == null ? null : v.getCompiled();
+						if (c == null) {
+							System.out.println("No such function!");
+						} else if (!c.isDeterministic()) {
+							System.out.println("Only deterministic functions can be mapped!");
+						} else {
+							try {
+								MappedTransducer.write(c, Paths.get(remaining + ".star"));
+							} catch (IOException e) {
+								e.printStackTrace();
+							}
+						}
+						break;
+					}
 					default:
 						if (firstWord.startsWith(":")) {
 							System.out.println("Unknown command!");
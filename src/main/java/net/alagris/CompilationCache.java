@@ -0,0 +1,208 @@
+package net.alagris;
+
+import net.alagris.GrammarParser.FuncDefContext;
+import net.alagris.GrammarParser.InformantContext;
+import net.alagris.GrammarParser.MealyAtomicExternalContext;
+import net.alagris.GrammarParser.MealyAtomicVarIDContext;
+import net.alagris.LexUnicodeSpecification.E;
+import net.alagris.LexUnicodeSpecification.P;
+import net.alagris.LexUnicodeSpecification.Var;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Content-addressed cache of compiled definitions stored on local disk (see
+ * {@link ParserListener#setDefinitionCache}). Every definition is keyed by a hash of its source text, the keys
+ * of all variables it references and the contents of files read by external functions (such as
+ * <tt>import!</tt> and <tt>stringFile!</tt>). Hence, after editing a few definitions, only those and the
+ * definitions that depend on them are built anew, while all the others are loaded in their optimised form
+ * (see {@link LexUnicodeSpecification#compressOptimised}).
+ * <p>
+ * Definitions that reference variables not defined through this cache (other than the built-in ones) are
+ * never cached, because their keys cannot be computed. States of restored graphs point to the
+ * definition rather than to the exact places in its body.
+ */
+public final class CompilationCache<N, G extends IntermediateGraph<Pos, E, P, N>>
+        implements ParserListener.DefinitionCache<Var<N, G>, G> {
+    private static final String FORMAT = "mealy-cache-1";
+
+    private final LexUnicodeSpecification<N, G> spec;
+    private final Path directory;
+    private final Set<String> fileFunctions;
+    /**
+     * Keys of variables defined so far. Null for those that could not be cached.
+     */
+    private final HashMap<String, String> keys = new HashMap<>();
+    /**
+     * Keys of definitions that were looked up but not introduced yet
+     */
+    private final IdentityHashMap<FuncDefContext, String> pending = new IdentityHashMap<>();
+    private final HashMap<Path, String> fileHashes = new HashMap<>();
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param fileFunctions external functions whose first arguments are paths to files
+     */
+    public CompilationCache(LexUnicodeSpecification<N, G> spec, Path directory, Set<String> fileFunctions)
+            throws IOException {
+        this.spec = spec;
+        this.directory = Files.createDirectories(directory);
+        this.fileFunctions = fileFunctions;
+    }
+
+    /**
+     * Files are read by <tt>import!</tt> and <tt>stringFile!</tt>
+     */
+    public CompilationCache(LexUnicodeSpecification<N, G> spec, Path directory) throws IOException {
+        this(spec, directory, new HashSet<>(Arrays.asList("import", "stringFile")));
+    }
+
+    @Override
+    public G lookup(FuncDefContext definition) throws CompilationError {
+        final String key = key(definition);
+        if (key == null) return null;
+        pending.put(definition, key);
+        final Path file = directory.resolve(key + ".star");
+        if (Files.exists(file)) {
+            final Pos pos = new Pos(definition.ID().getSymbol());
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                final G g = spec.loadOptimised(pos, in);
+                hits++;
+                return g;
+            } catch (IOException | RuntimeException e) {
+                // corrupted entry will be overwritten
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    @Override
+    public void introduced(FuncDefContext definition, Var<N, G> var, boolean cached) throws CompilationError {
+        final String key = pending.remove(definition);
+        keys.put(var.name, key);
+        if (key == null || cached) return;
+        final Path file = directory.resolve(key + ".star");
+        try {
+            final Path tmp = Files.createTempFile(directory, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                spec.compressOptimised(spec.getOptimised(var), out);
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // the definition simply won't be cached
+        }
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return hex-encoded hash or null if the definition cannot be cached
+     */
+    private String key(FuncDefContext definition) {
+        final MessageDigest digest = sha256();
+        update(digest, FORMAT);
+        update(digest, spec.isEagerMinimisation() + " " + spec.minimal() + " " + spec.maximal());
+        update(digest, (definition.exponential == null ? "" : "!!") + definition.ID().getText());
+        update(digest, sourceText(definition.mealy_union()));
+        return addDependencies(digest, definition.mealy_union()) ? hex(digest.digest()) : null;
+    }
+
+    private boolean addDependencies(MessageDigest digest, ParseTree expression) {
+        if (expression instanceof MealyAtomicVarIDContext) {
+            final String name = ((MealyAtomicVarIDContext) expression).ID().getText();
+            final String key;
+            if (keys.containsKey(name)) {
+                key = keys.get(name);
+            } else {
+                final Var<N, G> var = spec.borrowVariable(name);
+                key = var != null && var.pos == Pos.NONE ? "built-in " + name : null;
+            }
+            if (key == null) return false;
+            update(digest, name + "=" + key);
+        } else if (expression instanceof MealyAtomicExternalContext) {
+            final MealyAtomicExternalContext external = (MealyAtomicExternalContext) expression;
+            final InformantContext informant = external.informant();
+            if (fileFunctions.contains(external.ID().getText()) && informant != null) {
+                final String path = ParserListener.parseQuotedLiteral(informant.StringLiteral(0)).toUnicodeString();
+                final String hash = fileHash(Paths.get(path));
+                if (hash == null) return false;
+                update(digest, path + "=" + hash);
+            }
+        }
+        for (int i = 0; i < expression.getChildCount(); i++) {
+            if (!addDependencies(digest, expression.getChild(i))) return false;
+        }
+        return true;
+    }
+
+    private String fileHash(Path path) {
+        return fileHashes.computeIfAbsent(path.toAbsolutePath(), p -> {
+            try {
+                return hex(sha256().digest(Files.readAllBytes(p)));
+            } catch (IOException e) {
+                return null;
+            }
+        });
+    }
+
+    private static String sourceText(ParserRuleContext ctx) {
+        return ctx.start.getInputStream().getText(Interval.of(ctx.start.getStartIndex(), ctx.stop.getStopIndex()));
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte) (bytes.length >>> 24));
+        digest.update((byte) (bytes.length >>> 16));
+        digest.update((byte) (bytes.length >>> 8));
+        digest.update((byte) bytes.length);
+        digest.update(bytes);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
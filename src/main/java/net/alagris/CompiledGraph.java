@@ -0,0 +1,507 @@
+package net.alagris;
+
+import net.alagris.LexUnicodeSpecification.E;
+import net.alagris.LexUnicodeSpecification.P;
+import net.alagris.Specification.Range;
+import net.alagris.Specification.RangedGraph;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Immutable, flat (CSR-style) form of {@link RangedGraph} meant only for evaluation. All ranges, transitions
+ * and outputs are stored in primitive arrays so that evaluation never has to chase pointers through
+ * nested lists nor compare boxed integers.
+ * <p>
+ * Ranges of state <tt>s</tt> occupy indices <tt>rangeOffset[s]</tt> (inclusive) up to
+ * <tt>rangeOffset[s+1]</tt> (exclusive) of {@link #rangeInput}. Transitions taken in range <tt>r</tt>
+ * occupy indices <tt>transOffset[r]</tt> up to <tt>transOffset[r+1]</tt> of transition arrays.
+ * Outputs of all transitions and accepting states are interned in one shared {@link #outputPool}.
+ */
+public final class CompiledGraph {
+
+    /**
+     * Symbol that is used as reflection marker on outputs. Every occurrence of it on transition output
+     * is replaced with the input symbol. Occurrences on final outputs are skipped.
+     */
+    final int minimal;
+    final int initial;
+    /**
+     * True if every range has at most one transition
+     */
+    final boolean deterministic;
+    /**
+     * True if the graph reads UTF-8 bytes instead of code points (see {@link #toUtf8()})
+     */
+    final boolean utf8;
+    final int[] rangeOffset;
+    /**
+     * Inclusive upper bound of each range. Exclusive lower bound is the upper bound of previous range
+     * (or {@link #minimal} for the first range of each state)
+     */
+    final int[] rangeInput;
+    final int[] transOffset;
+    final int[] transTarget;
+    final int[] transWeight;
+    final int[] transOutBegin;
+    final int[] transOutEnd;
+    /**
+     * Set to -1 for states that are not accepting
+     */
+    final int[] finalOutBegin;
+    final int[] finalOutEnd;
+    final int[] finalWeight;
+    final int[] outputPool;
+    /**
+     * Symbols below this limit are looked up directly in {@link #dense} instead of being binary searched.
+     * Zero if there is no dense table.
+     */
+    final int denseLimit;
+    /**
+     * Row-major table of size <tt>size()*denseLimit</tt> holding the result of {@link #rangeIndex} for
+     * every state and every symbol below {@link #denseLimit}
+     */
+    final int[] dense;
+    /**
+     * Equivalence classes of alphabet. Null if there is no class table.
+     */
+    final AlphabetClasses classes;
+    /**
+     * Row-major table of size <tt>size()*classes.size()</tt> holding the result of {@link #rangeIndex}
+     * for every state and every class of symbols
+     */
+    final int[] classTable;
+
+    CompiledGraph(int minimal, int initial, boolean deterministic, boolean utf8, int[] rangeOffset, int[] rangeInput,
+                          int[] transOffset, int[] transTarget, int[] transWeight, int[] transOutBegin,
+                          int[] transOutEnd, int[] finalOutBegin, int[] finalOutEnd, int[] finalWeight,
+                          int[] outputPool, int denseLimit, int[] dense, AlphabetClasses classes,
+                          int[] classTable) {
+        this.minimal = minimal;
+        this.initial = initial;
+        this.deterministic = deterministic;
+        this.utf8 = utf8;
+        this.rangeOffset = rangeOffset;
+        this.rangeInput = rangeInput;
+        this.transOffset = transOffset;
+        this.transTarget = transTarget;
+        this.transWeight = transWeight;
+        this.transOutBegin = transOutBegin;
+        this.transOutEnd = transOutEnd;
+        this.finalOutBegin = finalOutBegin;
+        this.finalOutEnd = finalOutEnd;
+        this.finalWeight = finalWeight;
+        this.outputPool = outputPool;
+        this.denseLimit = denseLimit;
+        this.dense = dense;
+        this.classes = classes;
+        this.classTable = classTable;
+    }
+
+    /**
+     * Flattens ranged graph. The graph itself is not modified and can be safely discarded afterwards.
+     *
+     * @param minimal the minimal symbol of specification, which is also used as the reflection marker
+     */
+    public static CompiledGraph compile(RangedGraph<?, Integer, E, P> g, int minimal) {
+        final int size = g.size();
+        int rangeCount = 0;
+        int transCount = 0;
+        for (ArrayList<Range<Integer, List<RangedGraph.Trans<E>>>> state : g.graph) {
+            rangeCount += state.size();
+            for (Range<Integer, List<RangedGraph.Trans<E>>> range : state) {
+                transCount += range.edges().size();
+            }
+        }
+        final int[] rangeOffset = new int[size + 1];
+        final int[] rangeInput = new int[rangeCount];
+        final int[] transOffset = new int[rangeCount + 1];
+        final int[] transTarget = new int[transCount];
+        final int[] transWeight = new int[transCount];
+        final int[] transOutBegin = new int[transCount];
+        final int[] transOutEnd = new int[transCount];
+        final int[] finalOutBegin = new int[size];
+        final int[] finalOutEnd = new int[size];
+        final int[] finalWeight = new int[size];
+        final OutputPool pool = new OutputPool();
+        boolean deterministic = true;
+        int r = 0;
+        int t = 0;
+        for (int state = 0; state < size; state++) {
+            rangeOffset[state] = r;
+            for (Range<Integer, List<RangedGraph.Trans<E>>> range : g.graph.get(state)) {
+                rangeInput[r] = range.input();
+                transOffset[r] = t;
+                final List<RangedGraph.Trans<E>> edges = range.edges();
+                if (edges.size() > 1) deterministic = false;
+                for (RangedGraph.Trans<E> tr : edges) {
+                    transTarget[t] = tr.targetState;
+                    transWeight[t] = tr.edge.getWeight();
+                    transOutBegin[t] = pool.intern(tr.edge.getOut());
+                    transOutEnd[t] = transOutBegin[t] + tr.edge.getOut().size();
+                    t++;
+                }
+                r++;
+            }
+            final P fin = g.getFinalEdge(state);
+            if (fin == null) {
+                finalOutBegin[state] = -1;
+                finalOutEnd[state] = -1;
+            } else {
+                finalWeight[state] = fin.getWeight();
+                finalOutBegin[state] = pool.intern(fin.getOut());
+                finalOutEnd[state] = finalOutBegin[state] + fin.getOut().size();
+            }
+        }
+        rangeOffset[size] = r;
+        transOffset[rangeCount] = t;
+        assert r == rangeCount;
+        assert t == transCount;
+        return new CompiledGraph(minimal, g.initial, deterministic, false, rangeOffset, rangeInput, transOffset,
+                transTarget, transWeight, transOutBegin, transOutEnd, finalOutBegin, finalOutEnd, finalWeight,
+                pool.toArray(), 0, null, null, null);
+    }
+
+    /**
+     * Same as {@link #compile(RangedGraph, int)} followed by {@link #withDenseTable(int)}
+     */
+    public static CompiledGraph compile(RangedGraph<?, Integer, E, P> g, int minimal, int denseLimit) {
+        final CompiledGraph compiled = compile(g, minimal);
+        return denseLimit > 0 ? compiled.withDenseTable(denseLimit) : compiled;
+    }
+
+    /**
+     * Creates a copy of this graph (sharing all the arrays) extended with a dense table, that maps
+     * every symbol below the limit directly to its range, for every state. Lookup of such symbols takes
+     * constant time instead of binary search. Higher symbols still fall back to binary search. The table
+     * costs <tt>4*size()*denseLimit</tt> bytes (see {@link #denseTableBytes()}).
+     *
+     * @param denseLimit for instance 128 covers ASCII and 256 covers Latin-1. Zero removes the table.
+     */
+    public CompiledGraph withDenseTable(int denseLimit) {
+        if (denseLimit < 0 || (long) size() * denseLimit > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Dense table of " + size() + "x" + denseLimit + " is too large");
+        }
+        final int[] dense = denseLimit == 0 ? null : new int[size() * denseLimit];
+        for (int state = 0; state < size() && dense != null; state++) {
+            for (int symbol = 0; symbol < denseLimit; symbol++) {
+                dense[state * denseLimit + symbol] = binarySearchRange(state, symbol);
+            }
+        }
+        return new CompiledGraph(minimal, initial, deterministic, utf8, rangeOffset, rangeInput, transOffset,
+                transTarget, transWeight, transOutBegin, transOutEnd, finalOutBegin, finalOutEnd, finalWeight,
+                outputPool, denseLimit, dense, classes, classTable);
+    }
+
+    /**
+     * Creates a copy of this graph (sharing all the arrays) extended with alphabet equivalence classes.
+     * Range boundaries of all states partition the alphabet into classes of symbols that are
+     * indistinguishable by any state. Every symbol is mapped to its class with a two-level lookup table
+     * (see {@link AlphabetClasses}) and ranges are then looked up in a <tt>size()*classCount()</tt> table.
+     * This replaces binary search with a few array loads for all symbols (except for those below the
+     * limit of dense table, if there is one, which remain as they are).
+     */
+    public CompiledGraph withAlphabetClasses() {
+        final int[] sorted = rangeInput.clone();
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) sorted[distinct++] = sorted[i];
+        }
+        final AlphabetClasses classes = new AlphabetClasses(Arrays.copyOf(sorted, distinct));
+        final int classCount = classes.size();
+        if ((long) size() * classCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Class table of " + size() + "x" + classCount + " is too large");
+        }
+        final int[] classTable = new int[size() * classCount];
+        for (int state = 0; state < size(); state++) {
+            int r = rangeOffset[state];
+            for (int cls = 0; cls < classCount; cls++) {
+                // Ranges of every state are a coarser partition than classes
+                if (r < rangeOffset[state + 1] && cls > 0 && rangeInput[r] <= classes.boundaries[cls - 1]) r++;
+                classTable[state * classCount + cls] = r < rangeOffset[state + 1] ? r : -1;
+            }
+        }
+        return new CompiledGraph(minimal, initial, deterministic, utf8, rangeOffset, rangeInput, transOffset,
+                transTarget, transWeight, transOutBegin, transOutEnd, finalOutBegin, finalOutEnd, finalWeight,
+                outputPool, denseLimit, dense, classes, classTable);
+    }
+
+    /**
+     * Identical output strings are stored only once
+     */
+    private static final class OutputPool {
+        final HashMap<IntSeq, Integer> offsets = new HashMap<>();
+        int[] pool = new int[16];
+        int size = 0;
+
+        int intern(IntSeq out) {
+            if (out.isEmpty()) return 0;
+            final Integer prev = offsets.get(out);
+            if (prev != null) return prev;
+            final int offset = size;
+            if (size + out.size() > pool.length) {
+                pool = Arrays.copyOf(pool, Math.max(pool.length * 2, size + out.size()));
+            }
+            for (int i = 0; i < out.size(); i++) {
+                pool[size++] = out.at(i);
+            }
+            offsets.put(out, offset);
+            return offset;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(pool, size);
+        }
+    }
+
+    public int size() {
+        return finalWeight.length;
+    }
+
+    public int getInitial() {
+        return initial;
+    }
+
+    public int getMinimal() {
+        return minimal;
+    }
+
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    public boolean isUtf8() {
+        return utf8;
+    }
+
+    /**
+     * Rewrites this graph into an equivalent one that reads UTF-8 bytes instead of code points
+     * (see {@link Utf8Compiler}). The result can be evaluated directly over byte buffers with
+     * {@link #evaluate(ByteBuffer)}. Its outputs still consist of code points. Dense table of 256 symbols
+     * (see {@link #withDenseTable(int)}) is a natural fit for it, because every byte can then be looked up
+     * directly.
+     */
+    public CompiledGraph toUtf8() {
+        if (utf8) return this;
+        return Utf8Compiler.compile(this);
+    }
+
+    public boolean isAccepting(int state) {
+        return state != -1 && finalOutBegin[state] != -1;
+    }
+
+    /**
+     * @return global index of range (of given state) that contains the input symbol or -1 if there is no such
+     * range. The transitions of returned range can be found in {@link #transOffset}.
+     */
+    public int rangeIndex(int state, int input) {
+        if (input < denseLimit && input >= 0) {
+            return dense[state * denseLimit + input];
+        }
+        if (classTable != null) {
+            return classTable[state * classes.size() + classes.classOf(input)];
+        }
+        return binarySearchRange(state, input);
+    }
+
+    private int binarySearchRange(int state, int input) {
+        int low = rangeOffset[state];
+        int high = rangeOffset[state + 1] - 1;
+        final int end = high;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int midVal = rangeInput[mid];
+            if (midVal < input)
+                low = mid + 1;
+            else if (midVal > input)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return low > end ? -1 : low;
+    }
+
+    public int getDenseLimit() {
+        return denseLimit;
+    }
+
+    /**
+     * @return memory occupied by the dense table in bytes (zero if there is none)
+     */
+    public long denseTableBytes() {
+        return dense == null ? 0 : 4L * dense.length;
+    }
+
+    /**
+     * @return number of alphabet equivalence classes or zero if there is no class table
+     */
+    public int classCount() {
+        return classes == null ? 0 : classes.size();
+    }
+
+    /**
+     * @return memory occupied by the class table and class lookup in bytes (zero if there are none)
+     */
+    public long classTableBytes() {
+        return classes == null ? 0 : 4L * classTable.length + classes.memoryBytes();
+    }
+
+    /**
+     * @return memory occupied by all the arrays in bytes (including the dense and class tables), not
+     * counting object headers
+     */
+    public long memoryBytes() {
+        return 4L * (rangeOffset.length + rangeInput.length + transOffset.length + transTarget.length
+                + transWeight.length + transOutBegin.length + transOutEnd.length + finalOutBegin.length
+                + finalOutEnd.length + finalWeight.length + outputPool.length) + denseTableBytes()
+                + classTableBytes();
+    }
+
+    /**
+     * Creates new scratch memory for evaluation of this graph. Evaluators can be reused for any number of
+     * inputs, but must not be shared between threads.
+     */
+    public Evaluator makeEvaluator() {
+        return new Evaluator(this);
+    }
+
+    /**
+     * Creates evaluator that lazily determinizes this graph (see {@link LazyDfaEvaluator}). It must not be
+     * shared between threads.
+     *
+     * @param capacity maximal number of cached superpositions
+     */
+    public LazyDfaEvaluator makeLazyDfaEvaluator(int capacity) {
+        return new LazyDfaEvaluator(this, capacity);
+    }
+
+    /**
+     * Convenience method that allocates new scratch memory on every call. Repeated evaluations should rather
+     * reuse an {@link Evaluator} (see {@link #makeEvaluator()} and {@link Evaluator#perThread}).
+     *
+     * @return output or null if the input is rejected
+     */
+    public IntSeq evaluate(IntSeq input) {
+        return makeEvaluator().evaluate(input);
+    }
+
+    public IntSeq evaluate(int[] input, int offset, int length) {
+        return makeEvaluator().evaluate(input, offset, length);
+    }
+
+    public IntSeq evaluate(CharSequence input) {
+        return makeEvaluator().evaluate(input);
+    }
+
+    public IntSeq evaluate(PrimitiveIterator.OfInt input) {
+        return makeEvaluator().evaluate(input);
+    }
+
+    public String evaluate(String input) {
+        return makeEvaluator().evaluate(input);
+    }
+
+    /**
+     * Appends output to caller-supplied buffer (see {@link Evaluator#evaluate(int[], int, int, IntSeqBuilder)}).
+     *
+     * @return number of appended symbols or {@link Evaluator#REJECTED}
+     */
+    public int evaluate(IntSeq input, IntSeqBuilder out) {
+        return makeEvaluator().evaluate(input, out);
+    }
+
+    public int evaluate(int[] input, int offset, int length, IntSeqBuilder out) {
+        return makeEvaluator().evaluate(input, offset, length, out);
+    }
+
+    /**
+     * @return number of appended chars or {@link Evaluator#REJECTED}
+     */
+    public int evaluate(CharSequence input, StringBuilder out) {
+        return makeEvaluator().evaluate(input, out);
+    }
+
+    /**
+     * @return number of written chars, {@link Evaluator#REJECTED} or {@link Evaluator#OVERFLOW}
+     */
+    public int evaluate(CharSequence input, CharBuffer out) {
+        return makeEvaluator().evaluate(input, out);
+    }
+
+    /**
+     * Writes output encoded in UTF-8.
+     *
+     * @return number of written bytes, {@link Evaluator#REJECTED} or {@link Evaluator#OVERFLOW}
+     */
+    public int evaluate(CharSequence input, ByteBuffer out) {
+        return makeEvaluator().evaluate(input, out);
+    }
+
+    /**
+     * Evaluates UTF-8 encoded input between position and limit of the buffer. The position of buffer is not
+     * changed. Works only for graphs compiled with {@link #toUtf8()}.
+     */
+    public IntSeq evaluate(ByteBuffer input) {
+        return makeEvaluator().evaluate(input);
+    }
+
+    /**
+     * Evaluates all inputs in parallel on the common {@link ForkJoinPool}.
+     *
+     * @return outputs in the same order as inputs (null for rejected inputs)
+     */
+    public List<IntSeq> evaluateAll(List<IntSeq> inputs) {
+        return evaluateAll(inputs, ForkJoinPool.commonPool());
+    }
+
+    public List<IntSeq> evaluateAll(List<IntSeq> inputs, ForkJoinPool pool) {
+        return BatchEvaluation.evaluateAll(inputs, Evaluator.perThread(this), pool);
+    }
+
+    /**
+     * Evaluates inputs in parallel, chunk by chunk, passing outputs to the sink in the same order as inputs
+     * (see {@link BatchEvaluation#evaluateAll(Iterator, Function, Consumer, ForkJoinPool)})
+     */
+    public void evaluateAll(Stream<IntSeq> inputs, Consumer<IntSeq> sink) {
+        evaluateAll(inputs, sink, ForkJoinPool.commonPool());
+    }
+
+    public void evaluateAll(Stream<IntSeq> inputs, Consumer<IntSeq> sink, ForkJoinPool pool) {
+        BatchEvaluation.evaluateAll(inputs.iterator(), Evaluator.perThread(this), sink, pool);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("init ").append(initial).append('\n');
+        for (int state = 0; state < size(); state++) {
+            for (int r = rangeOffset[state]; r < rangeOffset[state + 1]; r++) {
+                sb.append(state).append(" ").append(rangeInput[r]).append(" [");
+                for (int t = transOffset[r]; t < transOffset[r + 1]; t++) {
+                    if (t > transOffset[r]) sb.append(", ");
+                    sb.append(new IntSeq(outputPool, transOutBegin[t], transOutEnd[t] - transOutBegin[t]))
+                            .append(" ").append(transWeight[t]).append("->").append(transTarget[t]);
+                }
+                sb.append("]\n");
+            }
+        }
+        for (int state = 0; state < size(); state++) {
+            if (finalOutBegin[state] != -1) {
+                sb.append("fin ").append(state).append(" ")
+                        .append(new IntSeq(outputPool, finalOutBegin[state], finalOutEnd[state] - finalOutBegin[state]))
+                        .append(" ").append(finalWeight[state]).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package net.alagris;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/**
+ * Immutable counterpart of {@link LexUnicodeSpecification.LexPipeline} that holds only compiled stages and
+ * external functions, without any references to the compiler (see {@link LexUnicodeSpecification.LexPipeline#compile()}).
+ * It is safe to share between threads as long as the external functions are thread-safe.
+ */
+public final class CompiledPipeline {
+    /**
+     * Graph of every automaton stage (or null for external functions)
+     */
+    private final List<CompiledGraph> graphs;
+    /**
+     * Every stage as a function
+     */
+    private final List<Function<IntSeq, IntSeq>> stages;
+    private final EvaluationCache cache;
+
+    /**
+     * @param graphs        graph of every automaton stage (or null for external functions)
+     * @param stages        every stage as a function
+     * @param cacheCapacity zero if results should not be cached (see {@link EvaluationCache})
+     */
+    CompiledPipeline(List<CompiledGraph> graphs, List<Function<IntSeq, IntSeq>> stages, int cacheCapacity) {
+        assert graphs.size() == stages.size();
+        this.graphs = Collections.unmodifiableList(new ArrayList<>(graphs));
+        this.stages = Collections.unmodifiableList(new ArrayList<>(stages));
+        this.cache = cacheCapacity == 0 ? null : new EvaluationCache(this::evaluateStages, cacheCapacity);
+    }
+
+    /**
+     * Number of stages
+     */
+    public int size() {
+        return stages.size();
+    }
+
+    /**
+     * @return output or null if the input is rejected
+     */
+    public IntSeq evaluate(IntSeq input) {
+        return cache == null ? evaluateStages(input) : cache.evaluate(input);
+    }
+
+    public String evaluate(String input) {
+        final IntSeq out = evaluate(new IntSeq(input));
+        return out == null ? null : out.toUnicodeString();
+    }
+
+    private IntSeq evaluateStages(IntSeq input) {
+        for (Function<IntSeq, IntSeq> stage : stages) {
+            if (input == null) break;
+            input = stage.apply(input);
+        }
+        return input;
+    }
+
+    /**
+     * @return cache with hit and miss statistics or null if caching is disabled
+     */
+    public EvaluationCache getCache() {
+        return cache;
+    }
+
+    /**
+     * A new instance is returned on every call, because it is not thread-safe.
+     */
+    public StreamingPipeline makeStreamingEvaluator() {
+        final StreamingPipeline streaming = new StreamingPipeline();
+        for (int i = 0; i < stages.size(); i++) {
+            if (graphs.get(i) == null) {
+                streaming.append(stages.get(i));
+            } else {
+                streaming.append(graphs.get(i));
+            }
+        }
+        return streaming;
+    }
+
+    /**
+     * Evaluates all inputs in parallel on the common {@link ForkJoinPool}.
+     *
+     * @return outputs in the same order as inputs (null for rejected inputs)
+     */
+    public List<IntSeq> evaluateAll(List<IntSeq> inputs) {
+        return BatchEvaluation.evaluateAll(inputs, this::evaluate, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Evaluates inputs with every stage running on its own thread (see {@link PipelinedEvaluation}).
+     */
+    public List<IntSeq> evaluatePipelined(List<IntSeq> inputs) throws InterruptedException {
+        return PipelinedEvaluation.evaluateAll(inputs, stages);
+    }
+}
@@ -0,0 +1,122 @@
+package net.alagris;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Size-bounded memoization of a function from inputs to outputs (such as {@link CompiledGraph#evaluate(IntSeq)}).
+ * Rejected inputs (null outputs) are cached as well. The cache is safe to share between threads.
+ * <p>
+ * Lookups go through a {@link ConcurrentHashMap} and never take locks or allocate memory, so hits are cheap even
+ * under heavy contention. Only misses insert new entries under a lock. Once the cache is full, entries are
+ * evicted with the clock (second chance) policy, which approximates LRU while requiring nothing more than
+ * setting a flag on every hit. Inputs are copied before they are inserted, so the caller remains free to reuse
+ * their arrays.
+ */
+public final class EvaluationCache {
+
+    private static final class Entry {
+        final IntSeq key;
+        final IntSeq value;
+        volatile boolean referenced;
+
+        Entry(IntSeq key, IntSeq value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final Function<IntSeq, IntSeq> f;
+    private final ConcurrentHashMap<IntSeq, Entry> map;
+    /*Guarded by itself*/
+    private final Entry[] clock;
+    private int clockHand = 0;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param f        evaluated function. It must be thread-safe if the cache is shared between threads.
+     * @param capacity maximal number of cached inputs
+     */
+    public EvaluationCache(Function<IntSeq, IntSeq> f, int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity " + capacity + " is too small");
+        this.f = f;
+        this.clock = new Entry[capacity];
+        this.map = new ConcurrentHashMap<>(capacity * 4 / 3 + 1);
+    }
+
+    /**
+     * @return output or null if the input is rejected
+     */
+    public IntSeq evaluate(IntSeq input) {
+        final Entry cached = map.get(input);
+        if (cached != null) {
+            if (!cached.referenced) cached.referenced = true;
+            hits.increment();
+            return cached.value;
+        }
+        misses.increment();
+        final IntSeq output = f.apply(input);
+        insert(new Entry(new IntSeq(Arrays.copyOfRange(input.unsafe(), input.offset(), input.endExclusive())),
+                output));
+        return output;
+    }
+
+    public String evaluate(String input) {
+        final IntSeq out = evaluate(new IntSeq(input));
+        return out == null ? null : out.toUnicodeString();
+    }
+
+    private void insert(Entry entry) {
+        synchronized (clock) {
+            // another thread might have evaluated the same input in the meantime
+            if (map.containsKey(entry.key)) return;
+            Entry victim;
+            while ((victim = clock[clockHand]) != null && victim.referenced) {
+                victim.referenced = false;
+                clockHand = (clockHand + 1) % clock.length;
+            }
+            if (victim != null) {
+                map.remove(victim.key);
+                evictions.increment();
+            }
+            clock[clockHand] = entry;
+            clockHand = (clockHand + 1) % clock.length;
+            map.put(entry.key, entry);
+        }
+    }
+
+    public void clear() {
+        synchronized (clock) {
+            map.clear();
+            Arrays.fill(clock, null);
+            clockHand = 0;
+        }
+    }
+
+    public int getCapacity() {
+        return clock.length;
+    }
+
+    /**
+     * Number of currently cached inputs
+     */
+    public int size() {
+        return map.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
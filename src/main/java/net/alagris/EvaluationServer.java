@@ -0,0 +1,302 @@
+package net.alagris;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a {@link FrozenLexTransducer} over TCP on the loopback interface. The protocol is line-based and
+ * encoded in UTF-8. Every request is a single line
+ * <pre>name TAB input</pre>
+ * where name refers to a transducer or to a pipeline (if preceded by @ sign). Each request receives a single
+ * response line, which is either <tt>OK TAB output</tt>, <tt>REJECTED</tt> or <tt>ERROR TAB message</tt>.
+ * Backslash, tab, carriage return and newline are escaped (as <tt>\\</tt>, <tt>\t</tt>, <tt>\r</tt> and
+ * <tt>\n</tt>) in both inputs and outputs.
+ * <p>
+ * Requests longer than {@link #MAX_REQUEST_LENGTH} chars are answered with an error without being buffered.
+ * <p>
+ * Clients may pipeline requests, that is, send many of them without waiting for responses. Responses are
+ * written in the same order as requests and flushed only once there are no more buffered requests, so that
+ * a batch of requests is answered with a batch of responses. Every connection is served by one task of
+ * the executor, hence connections are served in parallel.
+ */
+public final class EvaluationServer implements Closeable {
+
+    public static final int MAX_REQUEST_LENGTH = 1 << 20;
+    /**
+     * Pause after failed accept (for instance when the process runs out of file descriptors), so that
+     * the acceptor does not spin
+     */
+    private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+    private final FrozenLexTransducer transducer;
+    private final ServerSocket server;
+    private final ExecutorService workers;
+    private final Set<Socket> clients = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Thread acceptor;
+    private volatile boolean closed = false;
+
+    /**
+     * Starts listening right away.
+     *
+     * @param port    0 to choose any free port (see {@link #getPort()})
+     * @param workers serves connections. It is shut down when the server is closed.
+     */
+    public EvaluationServer(FrozenLexTransducer transducer, int port, ExecutorService workers) throws IOException {
+        this.transducer = transducer;
+        this.workers = workers;
+        this.server = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        this.acceptor = new Thread(this::acceptAll, "evaluation-server-" + server.getLocalPort());
+        acceptor.start();
+    }
+
+    /**
+     * Connections are served on a cached thread pool
+     */
+    public EvaluationServer(FrozenLexTransducer transducer, int port) throws IOException {
+        this(transducer, port, Executors.newCachedThreadPool());
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Blocks until the server is closed
+     */
+    public void join() throws InterruptedException {
+        acceptor.join();
+    }
+
+    private void acceptAll() {
+        while (!closed) {
+            final Socket client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                if (closed) return;
+                // transient failures (such as running out of file descriptors) must not stop the server
+                e.printStackTrace();
+                try {
+                    Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+            clients.add(client);
+            try {
+                workers.execute(() -> serve(client));
+            } catch (RuntimeException e) {
+                // the executor is shut down
+                closeQuietly(client);
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try (final Reader reader = new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8);
+             final BufferedWriter out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(),
+                     StandardCharsets.UTF_8))) {
+            final LineReader in = new LineReader(reader);
+            final StringBuilder request = new StringBuilder();
+            int status;
+            while ((status = in.readLine(request, MAX_REQUEST_LENGTH)) != LineReader.END_OF_STREAM) {
+                out.write(status == LineReader.TOO_LONG ? "ERROR\tRequest too long!" : respond(request.toString()));
+                out.write('\n');
+                if (!in.ready()) out.flush();
+            }
+            out.flush();
+        } catch (IOException e) {
+            // client disconnected or the server was closed
+        } finally {
+            clients.remove(client);
+            closeQuietly(client);
+        }
+    }
+
+    /**
+     * Exceptions thrown during evaluation (for instance by external functions) are reported as errors, so that
+     * the remaining requests of the connection are still served.
+     */
+    String respond(String request) {
+        final int tab = request.indexOf('\t');
+        if (tab < 0) return "ERROR\tExpected name and input separated by tab!";
+        final String name = request.substring(0, tab);
+        final IntSeq input = new IntSeq(unescape(request.substring(tab + 1)));
+        final IntSeq output;
+        try {
+            if (name.startsWith("@")) {
+                final CompiledPipeline pipeline = transducer.getPipeline(name.substring(1));
+                if (pipeline == null) return "ERROR\tNo such function!";
+                output = pipeline.evaluate(input);
+            } else {
+                if (transducer.getTransducer(name) == null) return "ERROR\tNo such function!";
+                output = transducer.run(name, input);
+            }
+        } catch (RuntimeException e) {
+            return "ERROR\t" + escape(e.getMessage() == null ? e.getClass().getName() : e.getMessage());
+        }
+        return output == null ? "REJECTED" : "OK\t" + escape(output.toUnicodeString());
+    }
+
+    static String escape(String s) {
+        final StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Unknown escape sequences are left as they are
+     */
+    static String unescape(String s) {
+        if (s.indexOf('\\') < 0) return s;
+        final StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                switch (s.charAt(++i)) {
+                    case '\\':
+                        sb.append('\\');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    default:
+                        sb.append(c).append(s.charAt(i));
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads lines like {@link java.io.BufferedReader#readLine()} does, but never buffers more than the given
+     * number of chars of a single line
+     */
+    static final class LineReader {
+        static final int LINE = 0;
+        static final int TOO_LONG = 1;
+        static final int END_OF_STREAM = 2;
+
+        private final Reader in;
+        private final char[] buffer = new char[8192];
+        private int position = 0;
+        private int limit = 0;
+
+        LineReader(Reader in) {
+            this.in = in;
+        }
+
+        /**
+         * Lines are terminated by newline, optionally preceded by carriage return. Line that exceeds the
+         * maximal length is skipped up to its end.
+         *
+         * @param line replaced with the contents of line (without the terminator)
+         * @return {@link #LINE}, {@link #TOO_LONG} or {@link #END_OF_STREAM} if there are no more lines
+         */
+        int readLine(StringBuilder line, int maxLength) throws IOException {
+            line.setLength(0);
+            boolean tooLong = false;
+            boolean empty = true;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer, 0, buffer.length);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        if (empty) return END_OF_STREAM;
+                        break;
+                    }
+                }
+                empty = false;
+                int end = position;
+                while (end < limit && buffer[end] != '\n') end++;
+                if (!tooLong) {
+                    // one more char is allowed for the carriage return
+                    if (line.length() + end - position > maxLength + 1) {
+                        tooLong = true;
+                        line.setLength(0);
+                    } else {
+                        line.append(buffer, position, end - position);
+                    }
+                }
+                if (end < limit) {
+                    position = end + 1;
+                    break;
+                }
+                position = end;
+            }
+            if (!tooLong && line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                line.setLength(line.length() - 1);
+            }
+            if (tooLong || line.length() > maxLength) {
+                line.setLength(0);
+                return TOO_LONG;
+            }
+            return LINE;
+        }
+
+        boolean ready() throws IOException {
+            return position < limit || in.ready();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Stops accepting connections, closes all open connections and shuts down the executor
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        for (Socket client : clients) closeQuietly(client);
+        workers.shutdownNow();
+    }
+}
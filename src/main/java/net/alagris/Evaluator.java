@@ -0,0 +1,566 @@
+package net.alagris;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.function.Function;
+
+/**
+ * Reusable scratch memory for evaluation of {@link CompiledGraph}. The superposition of states is kept in dense
+ * arrays indexed by state. Membership of state in the next superposition is tested with generation stamps, so
+ * nothing needs to be cleared between steps. Backtracking records are allocated from an arena that is reset at
+ * the beginning of every evaluation. Once the arrays grow large enough, evaluation does not allocate anything
+ * except for the returned output.
+ * <p>
+ * Deterministic graphs (see {@link CompiledGraph#isDeterministic()}) have only one live state at a time. For them
+ * no backtracking is needed at all and the outputs of taken transitions are appended directly to an output buffer.
+ * <p>
+ * Evaluator is not thread-safe. Every thread should use its own instance (see {@link #perThread}).
+ */
+public final class Evaluator {
+
+    /**
+     * Arena larger than this is discarded after evaluation, so that a single long input does not make the
+     * evaluator hold on to large amounts of memory forever
+     */
+    private static final int MAX_RETAINED_RECORDS = 1 << 16;
+    private static final int INITIAL_RECORDS = 64;
+    private static final int INITIAL_OUTPUT = 64;
+    /**
+     * Returned instead of output length if the input is rejected
+     */
+    public static final int REJECTED = -1;
+    /**
+     * Returned instead of output length if the output does not fit in the remaining space of buffer
+     */
+    public static final int OVERFLOW = -2;
+
+    final CompiledGraph graph;
+    int[] thisStates;
+    int[] thisRecords;
+    int thisSize;
+    private int[] nextStates;
+    private int[] nextRecords;
+    /**
+     * State is present in the next superposition only if its stamp is equal to current generation
+     */
+    private final int[] stamp;
+    /**
+     * Position of state in the next superposition. Valid only if stamp is up to date.
+     */
+    private final int[] position;
+    private int generation = 0;
+    /*Backtracking arena. Each record holds index of previous record (or -1), the taken transition and input
+     symbol that was read*/
+    int[] recPrev;
+    int[] recTrans;
+    int[] recIn;
+    int records;
+    /**
+     * Output buffer of deterministic evaluation
+     */
+    IntSeqBuilder output = new IntSeqBuilder(INITIAL_OUTPUT);
+    /**
+     * The only live state of deterministic evaluation (or -1 if rejected)
+     */
+    int detState = -1;
+
+    public Evaluator(CompiledGraph graph) {
+        this.graph = graph;
+        final int size = graph.size();
+        thisStates = new int[size];
+        thisRecords = new int[size];
+        nextStates = new int[size];
+        nextRecords = new int[size];
+        stamp = new int[size];
+        position = new int[size];
+        allocateArena(INITIAL_RECORDS);
+    }
+
+    private void allocateArena(int capacity) {
+        recPrev = new int[capacity];
+        recTrans = new int[capacity];
+        recIn = new int[capacity];
+    }
+
+    /**
+     * Thread-safe function that evaluates the graph with a separate evaluator for every thread. Evaluators
+     * reference the graph but not the function, so once the function is no longer reachable, the evaluators of
+     * all threads can be garbage collected together with the graph.
+     */
+    public static Function<IntSeq, IntSeq> perThread(CompiledGraph graph) {
+        final ThreadLocal<Evaluator> evaluators = ThreadLocal.withInitial(graph::makeEvaluator);
+        return input -> evaluators.get().evaluate(input);
+    }
+
+    public CompiledGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Clears superposition and backtracking arena and puts the evaluator in the given initial state.
+     */
+    void reset(int initial) {
+        records = 0;
+        if (initial == -1) {
+            thisSize = 0;
+        } else {
+            thisStates[0] = initial;
+            thisRecords[0] = -1;
+            thisSize = 1;
+        }
+    }
+
+    /**
+     * Advances the superposition over one input symbol. Among several transitions leading to the same target
+     * state, the one with highest weight wins (the first one in case of ties).
+     *
+     * @param symbol recorded as the input symbol for the purpose of reflections. Usually the same as
+     *               <tt>in</tt>, except for UTF-8 graphs which read bytes but reflect code points.
+     * @return false if all computation branches died
+     */
+    boolean step(int in, int symbol) {
+        final CompiledGraph g = graph;
+        if (++generation == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0);
+            generation = 1;
+        }
+        final int gen = generation;
+        int nextSize = 0;
+        for (int j = 0; j < thisSize; j++) {
+            final int range = g.rangeIndex(thisStates[j], in);
+            if (range == -1) continue;
+            for (int t = g.transOffset[range], end = g.transOffset[range + 1]; t < end; t++) {
+                final int target = g.transTarget[t];
+                if (stamp[target] != gen) {
+                    stamp[target] = gen;
+                    position[target] = nextSize;
+                    nextStates[nextSize] = target;
+                    nextRecords[nextSize++] = newRecord(thisRecords[j], t, symbol);
+                } else {
+                    final int rec = nextRecords[position[target]];
+                    if (g.transWeight[recTrans[rec]] < g.transWeight[t]) {
+                        recTrans[rec] = t;
+                        recPrev[rec] = thisRecords[j];
+                    }
+                }
+            }
+        }
+        int[] tmp = thisStates;
+        thisStates = nextStates;
+        nextStates = tmp;
+        tmp = thisRecords;
+        thisRecords = nextRecords;
+        nextRecords = tmp;
+        thisSize = nextSize;
+        return nextSize > 0;
+    }
+
+    int newRecord(int prev, int trans, int in) {
+        if (records == recPrev.length) {
+            final int capacity = records * 2;
+            recPrev = Arrays.copyOf(recPrev, capacity);
+            recTrans = Arrays.copyOf(recTrans, capacity);
+            recIn = Arrays.copyOf(recIn, capacity);
+        }
+        recPrev[records] = prev;
+        recTrans[records] = trans;
+        recIn[records] = in;
+        return records++;
+    }
+
+    /**
+     * @return position (in current superposition) of the accepting state with highest final weight or -1 if
+     * none of the states is accepting
+     */
+    int bestAccepting() {
+        final CompiledGraph g = graph;
+        int best = -1;
+        for (int j = 0; j < thisSize; j++) {
+            final int state = thisStates[j];
+            if (g.finalOutBegin[state] != -1 && (best == -1 || g.finalWeight[state] > g.finalWeight[thisStates[best]])) {
+                best = j;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Reconstructs output by following backtracking records (starting from the last one) and appending the final
+     * output of accepting state
+     */
+    IntSeq collect(int record, int finalState) {
+        final int length = collectedLength(record, finalState);
+        final int[] output = new int[length];
+        collect(record, finalState, output, length);
+        return new IntSeq(output);
+    }
+
+    /**
+     * Same as {@link #collect(int, int)} but appends output to the given buffer
+     */
+    void collect(int record, int finalState, IntSeqBuilder out) {
+        final int length = collectedLength(record, finalState);
+        final int begin = out.reserve(length);
+        collect(record, finalState, out.unsafe(), begin + length);
+    }
+
+    private int collectedLength(int record, int finalState) {
+        final CompiledGraph g = graph;
+        final int[] pool = g.outputPool;
+        final int minimal = g.minimal;
+        int length = 0;
+        for (int k = g.finalOutBegin[finalState]; k < g.finalOutEnd[finalState]; k++) {
+            if (pool[k] != minimal) length++;
+        }
+        for (int rec = record; rec != -1; rec = recPrev[rec]) {
+            length += g.transOutEnd[recTrans[rec]] - g.transOutBegin[recTrans[rec]];
+        }
+        return length;
+    }
+
+    /**
+     * Writes output backwards, so that it ends right before the given index of the array
+     */
+    private void collect(int record, int finalState, int[] output, int endExclusive) {
+        final CompiledGraph g = graph;
+        final int[] pool = g.outputPool;
+        final int minimal = g.minimal;
+        int o = endExclusive;
+        for (int k = g.finalOutEnd[finalState] - 1; k >= g.finalOutBegin[finalState]; k--) {
+            if (pool[k] != minimal) output[--o] = pool[k];
+        }
+        for (int rec = record; rec != -1; rec = recPrev[rec]) {
+            final int t = recTrans[rec];
+            for (int k = g.transOutEnd[t] - 1; k >= g.transOutBegin[t]; k--) {
+                final int symbol = pool[k];
+                output[--o] = symbol == minimal ? recIn[rec] : symbol;
+            }
+        }
+        assert o == endExclusive - collectedLength(record, finalState);
+    }
+
+    void releaseArena() {
+        if (recPrev.length > MAX_RETAINED_RECORDS) {
+            allocateArena(INITIAL_RECORDS);
+        }
+        if (output.capacity() > MAX_RETAINED_RECORDS) {
+            output = new IntSeqBuilder(INITIAL_OUTPUT);
+        }
+    }
+
+    /**
+     * Appends output of transition. Reflections are replaced with the input symbol.
+     */
+    void appendTransOutput(IntSeqBuilder out, int t, int in) {
+        final CompiledGraph g = graph;
+        final int[] pool = g.outputPool;
+        final int minimal = g.minimal;
+        final int end = g.transOutEnd[t];
+        out.ensureCapacity(out.size() + end - g.transOutBegin[t]);
+        for (int k = g.transOutBegin[t]; k < end; k++) {
+            final int symbol = pool[k];
+            out.append(symbol == minimal ? in : symbol);
+        }
+    }
+
+    /**
+     * Appends final output of accepting state. Reflections are skipped.
+     */
+    void appendFinalOutput(IntSeqBuilder out, int state) {
+        final CompiledGraph g = graph;
+        final int[] pool = g.outputPool;
+        final int minimal = g.minimal;
+        for (int k = g.finalOutBegin[state], end = g.finalOutEnd[state]; k < end; k++) {
+            if (pool[k] != minimal) out.append(pool[k]);
+        }
+    }
+
+    /**
+     * Starts new evaluation. Symbols are then passed one by one to {@link #feed(int)} and the output is
+     * obtained with {@link #finish()}.
+     */
+    void begin() {
+        if (graph.deterministic) {
+            output.clear();
+            detState = graph.initial;
+        } else {
+            reset(graph.initial);
+        }
+    }
+
+    /**
+     * Reads one input symbol. Deterministic graphs are evaluated in a single pass, without any backtracking,
+     * by appending outputs of taken transitions directly to {@link #output}.
+     *
+     * @return false if the input is already rejected and there is no point in feeding any more symbols
+     */
+    boolean feed(int in) {
+        return feed(in, in);
+    }
+
+    /**
+     * @param symbol used in place of input for reflections (see {@link #step(int, int)})
+     */
+    boolean feed(int in, int symbol) {
+        if (!graph.deterministic) {
+            return thisSize > 0 && step(in, symbol);
+        }
+        final CompiledGraph g = graph;
+        final int state = detState;
+        if (state == -1) return false;
+        final int range = g.rangeIndex(state, in);
+        if (range == -1 || g.transOffset[range] == g.transOffset[range + 1]) {
+            detState = -1;
+            return false;
+        }
+        final int t = g.transOffset[range];
+        appendTransOutput(output, t, symbol);
+        detState = g.transTarget[t];
+        return true;
+    }
+
+    /**
+     * @return output or null if the input fed so far is rejected
+     */
+    IntSeq finish() {
+        final IntSeq out;
+        if (graph.deterministic) {
+            if (graph.isAccepting(detState)) {
+                appendFinalOutput(output, detState);
+                out = output.toIntSeq();
+            } else {
+                out = null;
+            }
+        } else {
+            final int best = bestAccepting();
+            out = best == -1 ? null : collect(thisRecords[best], thisStates[best]);
+        }
+        releaseArena();
+        return out;
+    }
+
+    /**
+     * Same as {@link #finish()} but appends output to the given buffer (which may be {@link #output} itself)
+     *
+     * @return false if the input fed so far is rejected, in which case nothing is appended
+     */
+    boolean finish(IntSeqBuilder out) {
+        final boolean accepted;
+        if (graph.deterministic) {
+            accepted = graph.isAccepting(detState);
+            if (accepted) {
+                appendFinalOutput(output, detState);
+                if (out != output) out.append(output.unsafe(), 0, output.size());
+            }
+        } else {
+            final int best = bestAccepting();
+            accepted = best != -1;
+            if (accepted) collect(thisRecords[best], thisStates[best], out);
+        }
+        releaseArena();
+        return accepted;
+    }
+
+    /**
+     * Evaluates input into scratch buffer, whose contents are valid until the next evaluation
+     *
+     * @return scratch buffer or null if the input is rejected
+     */
+    private IntSeqBuilder evaluateToScratch(CharSequence input) {
+        begin();
+        for (int i = 0, len = input.length(); i < len; ) {
+            final int codepoint = Character.codePointAt(input, i);
+            i += Character.charCount(codepoint);
+            if (!feed(codepoint)) break;
+        }
+        final IntSeqBuilder scratch = output;
+        if (!graph.deterministic) scratch.clear();
+        return finish(scratch) ? scratch : null;
+    }
+
+    /**
+     * Performs the same evaluation as
+     * {@link LexUnicodeSpecification#evaluate(Specification.RangedGraph, int, java.util.PrimitiveIterator.OfInt)}.
+     *
+     * @return output or null if the input is rejected
+     */
+    public IntSeq evaluate(int[] input, int offset, int length) {
+        begin();
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (!feed(input[i])) break;
+        }
+        return finish();
+    }
+
+    public IntSeq evaluate(IntSeq input) {
+        return evaluate(input.unsafe(), input.offset(), input.size());
+    }
+
+    /**
+     * Appends output to the given buffer instead of allocating a new one. Buffer reused across evaluations
+     * makes evaluation free of allocations.
+     *
+     * @return number of appended symbols or {@link #REJECTED} (in which case nothing is appended)
+     */
+    public int evaluate(int[] input, int offset, int length, IntSeqBuilder out) {
+        begin();
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (!feed(input[i])) break;
+        }
+        final int before = out.size();
+        return finish(out) ? out.size() - before : REJECTED;
+    }
+
+    public int evaluate(IntSeq input, IntSeqBuilder out) {
+        return evaluate(input.unsafe(), input.offset(), input.size(), out);
+    }
+
+    /**
+     * Appends output code points to the given builder.
+     *
+     * @return number of appended chars or {@link #REJECTED} (in which case nothing is appended)
+     */
+    public int evaluate(CharSequence input, StringBuilder out) {
+        final IntSeqBuilder scratch = evaluateToScratch(input);
+        if (scratch == null) return REJECTED;
+        final int before = out.length();
+        for (int i = 0; i < scratch.size(); i++) out.appendCodePoint(scratch.at(i));
+        return out.length() - before;
+    }
+
+    /**
+     * Puts output code points (as chars) in the buffer, starting at its position.
+     *
+     * @return number of written chars, {@link #REJECTED} or {@link #OVERFLOW} (in which case nothing is written)
+     */
+    public int evaluate(CharSequence input, CharBuffer out) {
+        final IntSeqBuilder scratch = evaluateToScratch(input);
+        if (scratch == null) return REJECTED;
+        int length = 0;
+        for (int i = 0; i < scratch.size(); i++) length += Character.charCount(scratch.at(i));
+        if (length > out.remaining()) return OVERFLOW;
+        for (int i = 0; i < scratch.size(); i++) {
+            final int codepoint = scratch.at(i);
+            if (Character.isBmpCodePoint(codepoint)) {
+                out.put((char) codepoint);
+            } else {
+                out.put(Character.highSurrogate(codepoint));
+                out.put(Character.lowSurrogate(codepoint));
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Puts output encoded in UTF-8 in the buffer, starting at its position. Surrogate code points are encoded
+     * as '?', just like {@link java.nio.charset.StandardCharsets#UTF_8} does.
+     *
+     * @return number of written bytes, {@link #REJECTED} or {@link #OVERFLOW} (in which case nothing is written)
+     */
+    public int evaluate(CharSequence input, ByteBuffer out) {
+        return encodeUtf8(evaluateToScratch(input), out);
+    }
+
+    private static int encodeUtf8(IntSeqBuilder codepoints, ByteBuffer out) {
+        if (codepoints == null) return REJECTED;
+        int length = 0;
+        for (int i = 0; i < codepoints.size(); i++) length += utf8Length(codepoints.at(i));
+        if (length > out.remaining()) return OVERFLOW;
+        for (int i = 0; i < codepoints.size(); i++) {
+            final int c = codepoints.at(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >>> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.MIN_SURROGATE <= c && c <= Character.MAX_SURROGATE) {
+                out.put((byte) '?');
+            } else if (c < 0x10000) {
+                out.put((byte) (0xE0 | (c >>> 12)));
+                out.put((byte) (0x80 | ((c >>> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                out.put((byte) (0xF0 | (c >>> 18)));
+                out.put((byte) (0x80 | ((c >>> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((c >>> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return length;
+    }
+
+    private static int utf8Length(int codepoint) {
+        if (!Character.isValidCodePoint(codepoint)) {
+            throw new IllegalArgumentException("Output symbol " + codepoint + " is not a code point");
+        }
+        if (codepoint < 0x80) return 1;
+        if (codepoint < 0x800) return 2;
+        if (Character.MIN_SURROGATE <= codepoint && codepoint <= Character.MAX_SURROGATE) return 1;
+        if (codepoint < 0x10000) return 3;
+        return 4;
+    }
+
+    public IntSeq evaluate(PrimitiveIterator.OfInt input) {
+        begin();
+        while (input.hasNext()) {
+            if (!feed(input.nextInt())) break;
+        }
+        return finish();
+    }
+
+    /**
+     * Code points are decoded on the fly, without copying the input.
+     */
+    public IntSeq evaluate(CharSequence input) {
+        begin();
+        for (int i = 0, len = input.length(); i < len; ) {
+            final int codepoint = Character.codePointAt(input, i);
+            i += Character.charCount(codepoint);
+            if (!feed(codepoint)) break;
+        }
+        return finish();
+    }
+
+    public String evaluate(String input) {
+        final IntSeq out = evaluate((CharSequence) input);
+        return out == null ? null : out.toUnicodeString();
+    }
+
+    /**
+     * Evaluates UTF-8 encoded input between position and limit of the buffer, without decoding it into
+     * a separate array. The position of buffer is not changed. Code points are accumulated along the way only
+     * so that they can be reflected on outputs. Works only for graphs compiled with
+     * {@link CompiledGraph#toUtf8()}.
+     *
+     * @return output (consisting of code points) or null if the input is rejected
+     */
+    public IntSeq evaluate(ByteBuffer input) {
+        if (!graph.utf8) {
+            throw new IllegalStateException("Graph does not read UTF-8 bytes. Use CompiledGraph.toUtf8()");
+        }
+        begin();
+        int codepoint = 0;
+        for (int i = input.position(), end = input.limit(); i < end; i++) {
+            final int b = input.get(i) & 0xFF;
+            if (b < 0x80) {
+                codepoint = b;
+            } else if (b < 0xC0) {
+                codepoint = (codepoint << 6) | (b & 0x3F);
+            } else if (b < 0xE0) {
+                codepoint = b & 0x1F;
+            } else if (b < 0xF0) {
+                codepoint = b & 0x0F;
+            } else {
+                codepoint = b & 0x07;
+            }
+            if (!feed(b, codepoint)) break;
+        }
+        return finish();
+    }
+
+    public IntSeq evaluate(byte[] input, int offset, int length) {
+        return evaluate(ByteBuffer.wrap(input, offset, length));
+    }
+}
@@ -0,0 +1,105 @@
+package net.alagris;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/**
+ * Evaluates every record of a text file and writes the results to another file. Records are read in chunks,
+ * every chunk is evaluated in parallel (see {@link BatchEvaluation}) and its results are written in the same order
+ * as the records, so memory usage does not depend on the size of file.
+ * <p>
+ * Every line of input is either a single record or a row of tab-separated columns, one of which is the record.
+ * Results follow the convention of {@link EvaluationServer}: an accepted record yields <tt>OK TAB output</tt>
+ * and a rejected one yields <tt>REJECTED</tt>, so that rejection can be told apart from empty output. In the
+ * first case every line of output is the result of the corresponding record. In the second case every line of
+ * output is the input row with the result appended. Inputs and outputs are escaped in the same way as in
+ * {@link EvaluationServer}, so that outputs containing tabs or newlines do not break the structure of file.
+ */
+public final class FileBatchEvaluation {
+
+    private static final int CHUNK = 1 << 14;
+
+    public static final class Result {
+        public final long records;
+        public final long rejected;
+
+        Result(long records, long rejected) {
+            this.records = records;
+            this.rejected = rejected;
+        }
+    }
+
+    private FileBatchEvaluation() {
+    }
+
+    /**
+     * @param column index of tab-separated column that holds the record or -1 if every line is a single record.
+     *               Lines with too few columns are treated as rejected records.
+     */
+    public static Result evaluate(Path input, Path output, Function<IntSeq, IntSeq> f, int column,
+                                  ForkJoinPool pool) throws IOException {
+        long records = 0;
+        long rejected = 0;
+        try (final BufferedReader in = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             final FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ArrayList<String> lines = new ArrayList<>(CHUNK);
+            final ArrayList<IntSeq> inputs = new ArrayList<>(CHUNK);
+            final StringBuilder sb = new StringBuilder();
+            boolean eof = false;
+            while (!eof) {
+                lines.clear();
+                inputs.clear();
+                String line;
+                while (lines.size() < CHUNK && (line = in.readLine()) != null) {
+                    lines.add(line);
+                    final String record = column < 0 ? line : column(line, column);
+                    inputs.add(record == null ? null : new IntSeq(EvaluationServer.unescape(record)));
+                }
+                eof = lines.size() < CHUNK;
+                final List<IntSeq> outputs = BatchEvaluation.evaluateAll(inputs,
+                        record -> record == null ? null : f.apply(record), pool);
+                sb.setLength(0);
+                for (int i = 0; i < lines.size(); i++) {
+                    final IntSeq result = outputs.get(i);
+                    if (column >= 0) sb.append(lines.get(i)).append('\t');
+                    if (result == null) {
+                        rejected++;
+                        sb.append("REJECTED");
+                    } else {
+                        sb.append("OK\t").append(EvaluationServer.escape(result.toUnicodeString()));
+                    }
+                    sb.append('\n');
+                }
+                records += lines.size();
+                final ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(sb));
+                while (bytes.hasRemaining()) out.write(bytes);
+            }
+        }
+        return new Result(records, rejected);
+    }
+
+    /**
+     * @return the column of tab-separated line or null if there are not enough columns
+     */
+    private static String column(String line, int column) {
+        int from = 0;
+        for (int i = 0; i < column; i++) {
+            from = line.indexOf('\t', from) + 1;
+            if (from == 0) return null;
+        }
+        final int to = line.indexOf('\t', from);
+        return to < 0 ? line.substring(from) : line.substring(from, to);
+    }
+}
@@ -0,0 +1,125 @@
+package net.alagris;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Runtime produced by {@link CLI.OptimisedLexTransducer#freeze()}. It holds only compiled transducers and
+ * pipelines, so the compiler (intermediate graphs, optimised graphs, parser state) can be garbage collected.
+ * All of its state is either immutable or thread-safe, hence a single instance can be shared by any number of
+ * threads. Specialized transducers, lazy determinization and cache settings are carried over from the compiler.
+ */
+public final class FrozenLexTransducer {
+    private final Map<String, CompiledGraph> transducers;
+    /**
+     * Thread-safe evaluation of every transducer (see {@link Evaluator#perThread})
+     */
+    private final Map<String, Function<IntSeq, IntSeq>> evaluators;
+    private final Map<String, SpecializedTransducer> specialized;
+    private final Map<String, Function<IntSeq, IntSeq>> lazyDfa;
+    private final Map<String, EvaluationCache> caches;
+    private final Map<String, CompiledPipeline> pipelines;
+    /**
+     * UTF-8 variants of transducers are built on first use
+     */
+    private final ConcurrentHashMap<String, CompiledGraph> utf8 = new ConcurrentHashMap<>();
+
+    /**
+     * @param lazyDfaCapacities capacities of caches of those transducers that should be determinized lazily
+     * @param cacheCapacities   capacities of caches of those transducers that should memoize results
+     */
+    FrozenLexTransducer(Map<String, CompiledGraph> transducers, Map<String, SpecializedTransducer> specialized,
+                        Map<String, Integer> lazyDfaCapacities, Map<String, Integer> cacheCapacities,
+                        Map<String, CompiledPipeline> pipelines) {
+        this.transducers = Collections.unmodifiableMap(new HashMap<>(transducers));
+        final HashMap<String, Function<IntSeq, IntSeq>> evaluators = new HashMap<>();
+        for (Map.Entry<String, CompiledGraph> transducer : transducers.entrySet()) {
+            evaluators.put(transducer.getKey(), Evaluator.perThread(transducer.getValue()));
+        }
+        this.evaluators = Collections.unmodifiableMap(evaluators);
+        this.specialized = Collections.unmodifiableMap(new HashMap<>(specialized));
+        final HashMap<String, Function<IntSeq, IntSeq>> lazyDfa = new HashMap<>();
+        for (Map.Entry<String, Integer> capacity : lazyDfaCapacities.entrySet()) {
+            lazyDfa.put(capacity.getKey(), LazyDfaEvaluator.perThread(transducers.get(capacity.getKey()),
+                    capacity.getValue()));
+        }
+        this.lazyDfa = Collections.unmodifiableMap(lazyDfa);
+        this.pipelines = Collections.unmodifiableMap(new HashMap<>(pipelines));
+        final HashMap<String, EvaluationCache> caches = new HashMap<>();
+        for (Map.Entry<String, Integer> capacity : cacheCapacities.entrySet()) {
+            final String name = capacity.getKey();
+            caches.put(name, new EvaluationCache(input -> runUncached(name, input), capacity.getValue()));
+        }
+        this.caches = Collections.unmodifiableMap(caches);
+    }
+
+    public Set<String> getTransducerNames() {
+        return transducers.keySet();
+    }
+
+    /**
+     * @return names of pipelines (without the @ sign)
+     */
+    public Set<String> getPipelineNames() {
+        return pipelines.keySet();
+    }
+
+    /**
+     * @return null if there is no such transducer
+     */
+    public CompiledGraph getTransducer(String name) {
+        return transducers.get(name);
+    }
+
+    /**
+     * @param name should not contain the @ sign
+     * @return null if there is no such pipeline
+     */
+    public CompiledPipeline getPipeline(String name) {
+        return pipelines.get(name);
+    }
+
+    /**
+     * @return cache with hit and miss statistics or null if caching is disabled
+     */
+    public EvaluationCache getCache(String name) {
+        return caches.get(name);
+    }
+
+    public String run(String name, String input) {
+        final IntSeq out = run(name, new IntSeq(input));
+        return out == null ? null : out.toUnicodeString();
+    }
+
+    /**
+     * @return output or null if the input is rejected
+     */
+    public IntSeq run(String name, IntSeq input) {
+        final EvaluationCache cache = caches.get(name);
+        return cache == null ? runUncached(name, input) : cache.evaluate(input);
+    }
+
+    private IntSeq runUncached(String name, IntSeq input) {
+        final SpecializedTransducer specialized = this.specialized.get(name);
+        if (specialized != null) {
+            return specialized.evaluate(input);
+        }
+        final Function<IntSeq, IntSeq> lazyDfa = this.lazyDfa.get(name);
+        if (lazyDfa != null) {
+            return lazyDfa.apply(input);
+        }
+        return evaluators.get(name).apply(input);
+    }
+
+    /**
+     * Evaluates UTF-8 encoded input directly from the buffer (see {@link CompiledGraph#toUtf8()})
+     */
+    public IntSeq run(String name, ByteBuffer utf8) {
+        return this.utf8.computeIfAbsent(name, n -> transducers.get(n).toUtf8()).evaluate(utf8);
+    }
+}
@@ -266,9 +266,12 @@ public final class IntSeq implements Seq<Integer>, Comparable<IntSeq>, List<Inte
 		return true;
 	}
 
+	/**
+	 * The returned iterator can be consumed with {@link PrimitiveIterator.OfInt#nextInt()} without boxing
+	 */
 	@Override
-	public Iterator<Integer> iterator() {
-		return new Iterator<Integer>() {
+	public PrimitiveIterator.OfInt iterator() {
+		return new PrimitiveIterator.OfInt() {
 			int i = offset;
 
 			@Override
@@ -277,7 +280,7 @@ public final class IntSeq implements Seq<Integer>, Comparable<IntSeq>, List<Inte
 			}
 
 			@Override
-			public Integer next() {
+			public int nextInt() {
 				return arr[i++];
 			}
 		};
@@ -460,7 +463,7 @@ public final class IntSeq implements Seq<Integer>, Comparable<IntSeq>, List<Inte
 		return new IntSeq(arr, offset + fromInclusive, size() - fromInclusive);
 	}
 	public IntSeq sub(int fromInclusive, int endExclusive) {
-		return new IntSeq(arr, offset + fromInclusive, offset + endExclusive);
+		return new IntSeq(arr, offset + fromInclusive, endExclusive - fromInclusive);
 	}
 
 	public static boolean isPrintableChar(int c) {
@@ -539,6 +542,17 @@ public final class IntSeq implements Seq<Integer>, Comparable<IntSeq>, List<Inte
 		return arr;
 	}
 
+	/**Index in {@link #unsafe()} array at which this sequence begins (inclusive). Together with
+	 * {@link #endExclusive()} it allows for reading the backing array directly without copying.*/
+	public int offset() {
+		return offset;
+	}
+
+	/**Index in {@link #unsafe()} array at which this sequence ends (exclusive)*/
+	public int endExclusive() {
+		return endExclusive;
+	}
+
     public IntSeq copy() {
 		return new IntSeq(Arrays.copyOfRange(arr,offset,endExclusive));
     }
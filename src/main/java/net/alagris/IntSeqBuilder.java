@@ -0,0 +1,98 @@
+package net.alagris;
+
+import java.util.Arrays;
+
+/**
+ * Growable buffer of integers. It is to {@link IntSeq} what {@link StringBuilder} is to {@link String}.
+ */
+public final class IntSeqBuilder {
+    private int[] arr;
+    private int size;
+
+    public IntSeqBuilder() {
+        this(16);
+    }
+
+    public IntSeqBuilder(int capacity) {
+        arr = new int[Math.max(capacity, 1)];
+    }
+
+    public IntSeqBuilder append(int symbol) {
+        if (size == arr.length) {
+            arr = Arrays.copyOf(arr, size * 2);
+        }
+        arr[size++] = symbol;
+        return this;
+    }
+
+    public IntSeqBuilder append(int[] symbols, int fromInclusive, int toExclusive) {
+        final int len = toExclusive - fromInclusive;
+        ensureCapacity(size + len);
+        System.arraycopy(symbols, fromInclusive, arr, size, len);
+        size += len;
+        return this;
+    }
+
+    /**
+     * Grows the buffer by the given number of (uninitialised) symbols, which are meant to be filled directly
+     * in the array returned by {@link #unsafe()}
+     *
+     * @return index of the first reserved symbol
+     */
+    int reserve(int length) {
+        ensureCapacity(size + length);
+        final int begin = size;
+        size += length;
+        return begin;
+    }
+
+    /**
+     * The underlying array. Only the first {@link #size()} symbols are valid.
+     */
+    int[] unsafe() {
+        return arr;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > arr.length) {
+            arr = Arrays.copyOf(arr, Math.max(arr.length * 2, capacity));
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return arr.length;
+    }
+
+    public int at(int i) {
+        assert i < size;
+        return arr[i];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Discards all symbols past the given size
+     */
+    public void truncate(int size) {
+        assert 0 <= size && size <= this.size;
+        this.size = size;
+    }
+
+    /**
+     * @return copy of the contents
+     */
+    public IntSeq toIntSeq() {
+        return new IntSeq(Arrays.copyOf(arr, size));
+    }
+
+    @Override
+    public String toString() {
+        return new IntSeq(arr, 0, size).toString();
+    }
+}
@@ -0,0 +1,362 @@
+package net.alagris;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Function;
+
+/**
+ * Evaluates nondeterministic {@link CompiledGraph} by lazily determinizing it. Every superposition reached
+ * during evaluation becomes a state of the determinized automaton, whose outgoing transitions are computed
+ * on demand and cached. Each cached transition remembers, for every state of the next superposition, which
+ * state of the previous superposition it came from and over which transition (the best predecessor with
+ * respect to weights). Evaluation then takes only a single lookup per input symbol. Output is reconstructed at
+ * the end by following the best predecessors backwards through the history of taken transitions.
+ * <p>
+ * Superpositions are ordered tuples (rather than sets) of states, because the order decides which
+ * transition wins when several of them with equal weights lead to the same state. This way the results are
+ * exactly the same as those of {@link Evaluator}.
+ * <p>
+ * The number of cached superpositions is bounded. Once the cache is full, superpositions are evicted with
+ * the clock (second chance) policy. If too many cache misses occur during a single evaluation despite
+ * evictions, the cache is thrashing and evaluation falls back to plain simulation with {@link Evaluator}.
+ * Deterministic graphs are always evaluated with {@link Evaluator}, since there is nothing to determinize.
+ * <p>
+ * LazyDfaEvaluator is not thread-safe.
+ */
+public final class LazyDfaEvaluator {
+
+    /**
+     * Capacity used by {@link CLI.OptimisedLexTransducer#determinizeLazily(String)}
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final int MAX_RETAINED_HISTORY = 1 << 16;
+    private static final int INITIAL_HISTORY = 64;
+    /**
+     * Evaluations shorter than this never fall back to simulation
+     */
+    private static final int MIN_STEPS_BEFORE_FALLBACK = 64;
+
+    /**
+     * Superposition of states (state of the determinized automaton)
+     */
+    private static final class DState {
+        final int[] states;
+        /**
+         * Merged range boundaries of all states. Symbols between two consecutive boundaries lead
+         * every state to the same range, hence also to the same cached transition.
+         */
+        final int[] boundaries;
+        /**
+         * Cached transitions (one for each boundary). Null while evicted.
+         */
+        Edge[] edges;
+        boolean referenced;
+        boolean evicted = true;
+
+        DState(int[] states, int[] boundaries) {
+            this.states = states;
+            this.boundaries = boundaries;
+        }
+    }
+
+    private static final class Edge {
+        DState target;
+        /**
+         * For every state of target superposition, its position in the source superposition and
+         * transition that was taken
+         */
+        final int[] sourceSlot;
+        final int[] trans;
+
+        Edge(DState target, int[] sourceSlot, int[] trans) {
+            this.target = target;
+            this.sourceSlot = sourceSlot;
+            this.trans = trans;
+        }
+    }
+
+    private final CompiledGraph graph;
+    private final Evaluator simulation;
+    private final int capacity;
+    private final HashMap<IntSeq, DState> cache = new HashMap<>();
+    private final DState[] clock;
+    private int clockHand = 0;
+    private int cached = 0;
+    private DState initial;
+    /*History of taken transitions and the symbols that were read*/
+    private Edge[] history = new Edge[INITIAL_HISTORY];
+    private int[] historyIn = new int[INITIAL_HISTORY];
+    /*Scratch memory for computing transitions*/
+    private final int[] stamp;
+    private final int[] position;
+    private int generation = 0;
+    private final IntSeqBuilder scratch = new IntSeqBuilder();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long fallbacks;
+
+    /**
+     * @param capacity maximal number of superpositions kept in the cache
+     */
+    public LazyDfaEvaluator(CompiledGraph graph, int capacity) {
+        if (capacity < 2) throw new IllegalArgumentException("Capacity " + capacity + " is too small");
+        this.graph = graph;
+        this.capacity = capacity;
+        this.simulation = graph.makeEvaluator();
+        this.clock = new DState[capacity];
+        this.stamp = new int[graph.size()];
+        this.position = new int[graph.size()];
+    }
+
+    /**
+     * Thread-safe function that evaluates the graph with a separate evaluator (and hence a separate cache)
+     * for every thread
+     */
+    public static Function<IntSeq, IntSeq> perThread(CompiledGraph graph, int capacity) {
+        if (capacity < 2) throw new IllegalArgumentException("Capacity " + capacity + " is too small");
+        final ThreadLocal<LazyDfaEvaluator> evaluators = ThreadLocal.withInitial(() ->
+                new LazyDfaEvaluator(graph, capacity));
+        return input -> evaluators.get().evaluate(input);
+    }
+
+    public CompiledGraph getGraph() {
+        return graph;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getFallbacks() {
+        return fallbacks;
+    }
+
+    public int getCachedStates() {
+        return cached;
+    }
+
+    private DState makeState(int[] states) {
+        scratch.clear();
+        for (int state : states) {
+            scratch.append(graph.rangeInput, graph.rangeOffset[state], graph.rangeOffset[state + 1]);
+        }
+        final int[] boundaries = new int[scratch.size()];
+        for (int i = 0; i < boundaries.length; i++) boundaries[i] = scratch.at(i);
+        Arrays.sort(boundaries);
+        int distinct = 0;
+        for (int i = 0; i < boundaries.length; i++) {
+            if (i == 0 || boundaries[i] != boundaries[i - 1]) boundaries[distinct++] = boundaries[i];
+        }
+        return new DState(states, Arrays.copyOf(boundaries, distinct));
+    }
+
+    /**
+     * Returns the cached superposition consisting of given states. If there is none, a new one is inserted
+     * into the cache (possibly evicting another one).
+     */
+    private DState intern(int[] states) {
+        final DState prev = cache.get(new IntSeq(states));
+        return prev == null ? insert(makeState(states)) : prev;
+    }
+
+    /**
+     * Same as {@link #intern(int[])} but reuses evicted superposition if there is no cached one
+     */
+    private DState intern(DState d) {
+        final DState prev = cache.get(new IntSeq(d.states));
+        return prev == null ? insert(d) : prev;
+    }
+
+    private DState insert(DState d) {
+        final IntSeq key = new IntSeq(d.states);
+        if (cached == capacity) evict();
+        d.evicted = false;
+        d.referenced = true;
+        d.edges = new Edge[d.boundaries.length];
+        cache.put(key, d);
+        clock[clockHand] = d;
+        clockHand = (clockHand + 1) % capacity;
+        cached++;
+        return d;
+    }
+
+    private void evict() {
+        while (clock[clockHand].referenced) {
+            clock[clockHand].referenced = false;
+            clockHand = (clockHand + 1) % capacity;
+        }
+        final DState victim = clock[clockHand];
+        cache.remove(new IntSeq(victim.states));
+        victim.evicted = true;
+        victim.edges = null;
+        clock[clockHand] = null;
+        cached--;
+        evictions++;
+    }
+
+    /**
+     * Computes transition of superposition over symbol in the same way as {@link Evaluator#step(int, int)}
+     */
+    private Edge computeEdge(DState d, int in) {
+        final CompiledGraph g = graph;
+        if (++generation == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0);
+            generation = 1;
+        }
+        final int gen = generation;
+        final IntSeqBuilder next = scratch;
+        next.clear();
+        int[] sourceSlot = new int[Math.max(1, d.states.length)];
+        int[] trans = new int[sourceSlot.length];
+        for (int j = 0; j < d.states.length; j++) {
+            final int range = g.rangeIndex(d.states[j], in);
+            if (range == -1) continue;
+            for (int t = g.transOffset[range], end = g.transOffset[range + 1]; t < end; t++) {
+                final int target = g.transTarget[t];
+                if (stamp[target] != gen) {
+                    stamp[target] = gen;
+                    position[target] = next.size();
+                    if (next.size() == sourceSlot.length) {
+                        sourceSlot = Arrays.copyOf(sourceSlot, sourceSlot.length * 2);
+                        trans = Arrays.copyOf(trans, trans.length * 2);
+                    }
+                    sourceSlot[next.size()] = j;
+                    trans[next.size()] = t;
+                    next.append(target);
+                } else if (g.transWeight[trans[position[target]]] < g.transWeight[t]) {
+                    sourceSlot[position[target]] = j;
+                    trans[position[target]] = t;
+                }
+            }
+        }
+        final int[] states = new int[next.size()];
+        for (int i = 0; i < states.length; i++) states[i] = next.at(i);
+        final DState target = intern(states);
+        return new Edge(target, Arrays.copyOf(sourceSlot, states.length), Arrays.copyOf(trans, states.length));
+    }
+
+    /**
+     * @return output or null if the input is rejected
+     */
+    public IntSeq evaluate(int[] input, int offset, int length) {
+        if (graph.deterministic) return simulation.evaluate(input, offset, length);
+        if (initial == null || initial.evicted) {
+            initial = intern(graph.initial == -1 ? new int[0] : new int[]{graph.initial});
+        }
+        DState d = initial;
+        if (history.length < length) {
+            history = new Edge[Math.max(length, history.length * 2)];
+            historyIn = new int[history.length];
+        }
+        int steps = 0;
+        int evaluationMisses = 0;
+        final long evictionsBefore = evictions;
+        for (int i = offset, end = offset + length; i < end && d.states.length > 0; i++) {
+            final int in = input[i];
+            if (d.evicted) d = intern(d);
+            d.referenced = true;
+            int b = Arrays.binarySearch(d.boundaries, in);
+            if (b < 0) b = -b - 1;
+            if (b == d.boundaries.length) {
+                d = null;
+                break;
+            }
+            Edge edge = d.edges[b];
+            if (edge == null) {
+                misses++;
+                evaluationMisses++;
+                edge = computeEdge(d, in);
+                if (d.evicted) d = intern(d);
+                d.edges[b] = edge;
+                if (evictions > evictionsBefore && steps >= MIN_STEPS_BEFORE_FALLBACK
+                        && evaluationMisses * 2 > steps) {
+                    fallbacks++;
+                    clearHistory(steps);
+                    return simulation.evaluate(input, offset, length);
+                }
+            } else {
+                hits++;
+                if (edge.target.evicted) edge.target = intern(edge.target);
+            }
+            history[steps] = edge;
+            historyIn[steps] = in;
+            steps++;
+            d = edge.target;
+        }
+        final IntSeq out = d == null ? null : collect(d, steps);
+        clearHistory(steps);
+        return out;
+    }
+
+    public IntSeq evaluate(IntSeq input) {
+        return evaluate(input.unsafe(), input.offset(), input.size());
+    }
+
+    public String evaluate(String input) {
+        final IntSeq out = evaluate(new IntSeq(input));
+        return out == null ? null : out.toUnicodeString();
+    }
+
+    /**
+     * Follows best predecessors backwards from the accepting state with highest weight
+     */
+    private IntSeq collect(DState d, int steps) {
+        final CompiledGraph g = graph;
+        int best = -1;
+        for (int j = 0; j < d.states.length; j++) {
+            final int state = d.states[j];
+            if (g.finalOutBegin[state] != -1 && (best == -1 || g.finalWeight[state] > g.finalWeight[d.states[best]])) {
+                best = j;
+            }
+        }
+        if (best == -1) return null;
+        final int[] pool = g.outputPool;
+        final int finalState = d.states[best];
+        int length = 0;
+        for (int k = g.finalOutBegin[finalState]; k < g.finalOutEnd[finalState]; k++) {
+            if (pool[k] != g.minimal) length++;
+        }
+        for (int i = steps - 1, slot = best; i >= 0; i--) {
+            final int t = history[i].trans[slot];
+            length += g.transOutEnd[t] - g.transOutBegin[t];
+            slot = history[i].sourceSlot[slot];
+        }
+        final int[] output = new int[length];
+        int o = length;
+        for (int k = g.finalOutEnd[finalState] - 1; k >= g.finalOutBegin[finalState]; k--) {
+            if (pool[k] != g.minimal) output[--o] = pool[k];
+        }
+        for (int i = steps - 1, slot = best; i >= 0; i--) {
+            final int t = history[i].trans[slot];
+            for (int k = g.transOutEnd[t] - 1; k >= g.transOutBegin[t]; k--) {
+                output[--o] = pool[k] == g.minimal ? historyIn[i] : pool[k];
+            }
+            slot = history[i].sourceSlot[slot];
+        }
+        assert o == 0;
+        return new IntSeq(output);
+    }
+
+    /**
+     * Drops references to transitions (so that evicted ones can be garbage collected) and shrinks history
+     * after unusually long inputs
+     */
+    private void clearHistory(int steps) {
+        if (history.length > MAX_RETAINED_HISTORY) {
+            history = new Edge[INITIAL_HISTORY];
+            historyIn = new int[INITIAL_HISTORY];
+        } else {
+            Arrays.fill(history, 0, steps, null);
+        }
+    }
+}
@@ -1,12 +1,26 @@
 package net.alagris;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import static net.alagris.Pair.IntPair;
 
@@ -25,11 +39,19 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
 
     private final int MINIMAL,MAXIMAL;
     private final boolean eagerMinimisation;
+    private int denseTableLimit = 0;
+    private boolean alphabetClasses = false;
+    private int pipelineFusionBudget = 0;
     private final HashMap<String, ExternalFunction<G>> externalFunc = new HashMap<>();
     private final HashMap<String, ExternalOperation<G>> externalOp = new HashMap<>();
     private final ExternalPipelineFunction externalPipelineFunction;
     public final HashMap<String, Var<N, G>> variableAssignments = new HashMap<>();
     private final HashMap<String, LexPipeline<N, G>> pipelines = new HashMap<>();
+    /**
+     * Graphs loaded with {@link LexUnicodeSpecification#loadOptimised} together with their optimised forms.
+     * Keys are compared by identity and are not retained once the graph is no longer used.
+     */
+    private final WeakHashMap<G, RangedGraph<Pos, Integer, E, P>> preoptimised = new WeakHashMap<>();
 
 
     public static class Var<N, G extends IntermediateGraph<Pos, E, P, N>> {
@@ -41,11 +63,40 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
          */
         public final boolean alwaysCopy;
         private Specification.RangedGraph<Pos, Integer, E, P> optimal;
+        private CompiledGraph compiled;
+        private Function<IntSeq, IntSeq> evaluator;
+        private volatile CompiledGraph compiledUtf8;
 
         public Specification.RangedGraph<Pos, Integer, E, P> getOptimal() {
             return optimal;
         }
 
+        /**
+         * Flat form of {@link Var#getOptimal()}. It is available as soon as the variable gets optimised.
+         */
+        public CompiledGraph getCompiled() {
+            return compiled;
+        }
+
+        /**
+         * Thread-safe evaluation of {@link Var#getCompiled()} that reuses scratch memory of every thread (see
+         * {@link Evaluator#perThread}). It is available as soon as the variable gets optimised.
+         */
+        public Function<IntSeq, IntSeq> getEvaluator() {
+            return evaluator;
+        }
+
+        /**
+         * UTF-8 form of {@link Var#getCompiled()}. It is built on first use (see {@link CompiledGraph#toUtf8()}).
+         */
+        public CompiledGraph getCompiledUtf8() {
+            CompiledGraph utf8 = compiledUtf8;
+            if (utf8 == null && compiled != null) {
+                compiledUtf8 = utf8 = compiled.toUtf8();
+            }
+            return utf8;
+        }
+
         public Var(G graph, String name, Pos pos, boolean alwaysCopy) {
             this.graph = graph;
             this.name = name;
@@ -131,6 +182,8 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         if (variable.optimal == null) {
             variable.optimal = optimiseGraph(variable.graph);
             reduceEdges(variable.optimal);
+            variable.compiled = compile(variable.optimal);
+            variable.evaluator = Evaluator.perThread(variable.compiled);
         }
         return variable.optimal;
     }
@@ -326,6 +379,25 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         return g;
     }
 
+    /**
+     * If the graph was loaded with {@link LexUnicodeSpecification#loadOptimised}, then its optimised form
+     * is reused, so neither minimisation nor optimisation needs to run again.
+     */
+    @Override
+    public Var<N, G> introduceExternalVariable(String name, Pos pos, G graph, boolean alwaysCopy) throws CompilationError {
+        final RangedGraph<Pos, Integer, E, P> optimal = preoptimised.remove(graph);
+        if (optimal == null) return introduceVariable(name, pos, graph, alwaysCopy);
+        final Var<N, G> g = new Var<>(graph, name, pos, alwaysCopy);
+        final Var<N, G> prev = variableAssignments.put(name, g);
+        if (null != prev) {
+            throw new CompilationError.DuplicateFunction(prev.pos, pos, name);
+        }
+        g.optimal = optimal;
+        g.compiled = compile(optimal);
+        g.evaluator = Evaluator.perThread(g.compiled);
+        return g;
+    }
+
     @Override
     public Var<N, G> borrowVariable(String var) {
         return variableAssignments.get(var);
@@ -956,6 +1028,58 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
     }
 
 
+    public CompiledGraph compile(Specification.RangedGraph<?, Integer, E, P> graph) {
+        final CompiledGraph compiled = CompiledGraph.compile(graph, minimal(), denseTableLimit);
+        return alphabetClasses ? compiled.withAlphabetClasses() : compiled;
+    }
+
+    /**
+     * All graphs compiled from now on will carry dense lookup tables for symbols below the limit
+     * (see {@link CompiledGraph#withDenseTable(int)}). Zero (the default) disables dense tables.
+     */
+    public void setDenseTableLimit(int denseTableLimit) {
+        assert denseTableLimit >= 0;
+        this.denseTableLimit = denseTableLimit;
+    }
+
+    public int getDenseTableLimit() {
+        return denseTableLimit;
+    }
+
+    /**
+     * All graphs compiled from now on will carry alphabet equivalence class tables
+     * (see {@link CompiledGraph#withAlphabetClasses()}). Disabled by default.
+     */
+    public void setAlphabetClasses(boolean alphabetClasses) {
+        this.alphabetClasses = alphabetClasses;
+    }
+
+    /**
+     * Pipelines registered from now on will fuse adjacent automata into a single one (see
+     * {@link LexPipeline#append(Object, RangedGraph)}), as long as the fused automaton has at most the given number
+     * of states. Zero (the default) disables fusion.
+     */
+    public void setPipelineFusionBudget(int maxStates) {
+        assert maxStates >= 0;
+        this.pipelineFusionBudget = maxStates;
+    }
+
+    public int getPipelineFusionBudget() {
+        return pipelineFusionBudget;
+    }
+
+    public boolean isEagerMinimisation() {
+        return eagerMinimisation;
+    }
+
+    public boolean getAlphabetClasses() {
+        return alphabetClasses;
+    }
+
+    public IntSeq evaluate(CompiledGraph graph, IntSeq input) {
+        return graph.evaluate(input);
+    }
+
     public String evaluate(Specification.RangedGraph<?, Integer, E, P> graph, String input) {
         final IntSeq out = evaluate(graph, new IntSeq(input));
         return out == null ? null : out.toUnicodeString();
@@ -977,6 +1101,36 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         return evaluate(graph, graph.initial, input);
     }
 
+    public BacktrackingHead evaluate(RangedGraph<?, Integer, E, P> graph, int initial, Iterator<Integer> input) {
+        return evaluate(graph, initial, new PrimitiveIterator.OfInt() {
+            @Override
+            public int nextInt() {
+                return input.next();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return input.hasNext();
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #evaluate(RangedGraph, int, PrimitiveIterator.OfInt)} but does not box the input. The slice
+     * is iterated in place (see {@link IntSeq#iterator()}), without copying.
+     */
+    public BacktrackingHead evaluateHead(RangedGraph<?, Integer, E, P> graph, int[] input, int offset, int length) {
+        return evaluate(graph, graph.initial, new IntSeq(input, offset, length).iterator());
+    }
+
+    /**
+     * Code points are decoded on the fly. Unlike {@link #evaluate(RangedGraph, String)} the output is not
+     * collected.
+     */
+    public BacktrackingHead evaluateHead(RangedGraph<?, Integer, E, P> graph, CharSequence input) {
+        return evaluate(graph, graph.initial, input.codePoints().iterator());
+    }
+
     /**
      * Performs a very efficient evaluation algorithm for lexicographic ranged
      * transducers. It's O(n^2) for dense nondeterministic automata, O(n) for
@@ -992,13 +1146,13 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
      * @return singly linked list of all transitions taken by the best (with highest
      * weights) path. May be null if automaton does not accept
      */
-    public BacktrackingHead evaluate(RangedGraph<?, Integer, E, P> graph, int initial, Iterator<Integer> input) {
+    public BacktrackingHead evaluate(RangedGraph<?, Integer, E, P> graph, int initial, PrimitiveIterator.OfInt input) {
 
         HashMap<Integer, BacktrackingNode> thisList = new HashMap<>();
         HashMap<Integer, BacktrackingNode> nextList = new HashMap<>();
         if (initial != -1) thisList.put(initial, null);
         while (input.hasNext() && !thisList.isEmpty()) {
-            final int in = input.next();
+            final int in = input.nextInt();
             deltaSuperposition(graph, in, thisList, nextList);
             final HashMap<Integer, BacktrackingNode> tmp = thisList;
             thisList = nextList;
@@ -1049,6 +1203,119 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         }
     }
 
+    /**
+     * Same as {@link Specification#binarySearch} but does not box the input symbol
+     */
+    public List<RangedGraph.Trans<E>> binarySearch(RangedGraph<?, Integer, E, P> graph, int state, int input) {
+        final ArrayList<Range<Integer, List<RangedGraph.Trans<E>>>> transitions = graph.graph.get(state);
+        assert isFullSigmaCovered(transitions) : transitions + "\nstate=" + state + "\n" + graph;
+        return transitions.get(binarySearchIndex(transitions, input)).edges();
+    }
+
+    /**
+     * Same as {@link Specification#binarySearchIndex} but does not box the input symbol
+     */
+    public <M> int binarySearchIndex(ArrayList<Range<Integer, M>> transitions, int input) {
+        assert isFullSigmaCovered(transitions) : transitions;
+        int low = 0;
+        int high = transitions.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int midVal = transitions.get(mid).input();
+            if (midVal < input)
+                low = mid + 1;
+            else if (midVal > input)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        assert low < transitions.size() : low + " " + transitions;
+        return low;
+    }
+
+    /**
+     * Same as {@link Specification#deltaBinarySearchDeterministic} but does not box the input symbol
+     */
+    public RangedGraph.Trans<E> deltaBinarySearchDeterministic(RangedGraph<Pos, Integer, E, P> graph, int state,
+                                                               int input) {
+        final List<RangedGraph.Trans<E>> transitions = binarySearch(graph, state, input);
+        return transitions.isEmpty() ? null : transitions.get(0);
+    }
+
+    /**
+     * Same as {@link Specification#deltaBinarySearchTransitiveDeterministic} but consumes primitive
+     * iterator. Returns -1 if rejected.
+     */
+    public int deltaBinarySearchTransitiveDeterministic(RangedGraph<Pos, Integer, E, P> graph, int state,
+                                                        PrimitiveIterator.OfInt input) {
+        while (input.hasNext()) {
+            final RangedGraph.Trans<E> tran = deltaBinarySearchDeterministic(graph, state, input.nextInt());
+            if (tran == null) return -1;
+            state = tran.targetState;
+        }
+        return state;
+    }
+
+    public int deltaBinarySearchTransitiveDeterministic(RangedGraph<Pos, Integer, E, P> graph, int state,
+                                                        int[] input, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            final RangedGraph.Trans<E> tran = deltaBinarySearchDeterministic(graph, state, input[i]);
+            if (tran == null) return -1;
+            state = tran.targetState;
+        }
+        return state;
+    }
+
+    /**
+     * Code points are decoded on the fly.
+     */
+    public int deltaBinarySearchTransitiveDeterministic(RangedGraph<Pos, Integer, E, P> graph, int state,
+                                                        CharSequence input) {
+        for (int i = 0; i < input.length(); ) {
+            final int codepoint = Character.codePointAt(input, i);
+            i += Character.charCount(codepoint);
+            final RangedGraph.Trans<E> tran = deltaBinarySearchDeterministic(graph, state, codepoint);
+            if (tran == null) return -1;
+            state = tran.targetState;
+        }
+        return state;
+    }
+
+    public boolean accepts(RangedGraph<Pos, Integer, E, P> g, PrimitiveIterator.OfInt input) {
+        return g.isAccepting(deltaBinarySearchTransitiveDeterministic(g, g.initial, input));
+    }
+
+    public boolean accepts(RangedGraph<Pos, Integer, E, P> g, int[] input, int offset, int length) {
+        return g.isAccepting(deltaBinarySearchTransitiveDeterministic(g, g.initial, input, offset, length));
+    }
+
+    public boolean accepts(RangedGraph<Pos, Integer, E, P> g, CharSequence input) {
+        return g.isAccepting(deltaBinarySearchTransitiveDeterministic(g, g.initial, input));
+    }
+
+    /**
+     * Same as {@link Specification#deterministicDelta(IntermediateGraph, Object, Object)} but does not box
+     * the input symbol
+     */
+    public N deterministicDelta(G graph, N startpoint, int input) {
+        for (Map.Entry<E, N> edge : (Iterable<Map.Entry<E, N>>) () -> graph.iterator(startpoint)) {
+            if (edge.getKey().fromExclusive < input && input <= edge.getKey().toInclusive) {
+                return edge.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Same as {@link Specification#deterministicTransitiveDelta(IntermediateGraph, Object, Iterator)} but
+     * consumes primitive iterator
+     */
+    public N deterministicTransitiveDelta(G graph, N startpoint, PrimitiveIterator.OfInt input) {
+        while (input.hasNext() && startpoint != null)
+            startpoint = deterministicDelta(graph, startpoint, input.nextInt());
+        return startpoint;
+    }
+
     public ParserListener<LexPipeline<N, G>, Var<N, G>, Pos, E, P, Integer, IntSeq, Integer, N, G> makeParser() {
         return new ParserListener<>(this);
     }
@@ -1202,9 +1469,10 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
             } else {
                 for (Node node : other.nodes) {
                     if (node instanceof AutomatonNode) {
-                        append(((AutomatonNode) node).g);
+                        final AutomatonNode<G> automaton = automaton(node);
+                        append(automaton.source, automaton.g);
                     } else {
-                        append(((ExternalNode) node).f);
+                        append((ExternalNode) node);
                     }
                 }
                 this.hoarePos = other.hoarePos;
@@ -1221,18 +1489,37 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
                     throws CompilationError.CompositionTypecheckException;
         }
 
-        private static final class AutomatonNode implements Node {
+        private static final class AutomatonNode<G> implements Node {
+            /**
+             * Graph from which {@link #g} was optimised. It is retained only if the pipeline fuses
+             * automata. Otherwise null.
+             */
+            final G source;
             final RangedGraph<Pos, Integer, E, P> g;
+            final CompiledGraph compiled;
+            /**
+             * Thread-safe evaluation of {@link #compiled} (see {@link Evaluator#perThread})
+             */
+            final Function<IntSeq, IntSeq> evaluator;
+            /**
+             * Lazily determinizing evaluation of {@link #compiled} (see {@link LexPipeline#determinizeLazily}) or
+             * null if it is simulated
+             */
+            volatile Function<IntSeq, IntSeq> lazyDfa;
             private final LexUnicodeSpecification<?, ?> spec;
 
-            private AutomatonNode(RangedGraph<Pos, Integer, E, P> g, LexUnicodeSpecification<?, ?> spec) {
+            private AutomatonNode(G source, RangedGraph<Pos, Integer, E, P> g, LexUnicodeSpecification<?, ?> spec) {
+                this.source = source;
                 this.g = g;
                 this.spec = spec;
+                this.compiled = spec.compile(g);
+                this.evaluator = Evaluator.perThread(compiled);
             }
 
             @Override
             public IntSeq evaluate(IntSeq input) {
-                return spec.evaluate(g, input);
+                final Function<IntSeq, IntSeq> lazyDfa = this.lazyDfa;
+                return (lazyDfa == null ? evaluator : lazyDfa).apply(input);
             }
 
             @Override
@@ -1247,11 +1534,28 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
             }
         }
 
+        /**
+         * Automaton nodes are created only by {@link #append(IntermediateGraph, RangedGraph)}, hence the sources of all
+         * automata in a pipeline of type G are of type G too
+         */
+        @SuppressWarnings("unchecked")
+        private static <G> AutomatonNode<G> automaton(Node node) {
+            return (AutomatonNode<G>) node;
+        }
+
         private static final class ExternalNode implements Node {
             final Function<IntSeq, IntSeq> f;
-
-            private ExternalNode(Function<IntSeq, IntSeq> f) {
+            /**
+             * Name and arguments from which {@link #f} was made (see {@link ExternalPipelineFunction}) or null
+             * if the function was given directly
+             */
+            final String funcName;
+            final List<Pair<IntSeq, IntSeq>> args;
+
+            private ExternalNode(Function<IntSeq, IntSeq> f, String funcName, List<Pair<IntSeq, IntSeq>> args) {
                 this.f = f;
+                this.funcName = funcName;
+                this.args = args;
             }
 
             @Override
@@ -1275,10 +1579,36 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         private final ArrayList<Node> nodes = new ArrayList<>();
         private Pos hoarePos;
         private RangedGraph<Pos, Integer, E, P> hoareAssertion;
+        private volatile EvaluationCache cache;
 
         public LexPipeline<N, G> append(RangedGraph<Pos, Integer, E, P> g)
                 throws CompilationError.CompositionTypecheckException {
-            nodes.add(new AutomatonNode(g, spec));
+            return append(null, g);
+        }
+
+        /**
+         * Number of stages that are evaluated one after another
+         */
+        public int size() {
+            return nodes.size();
+        }
+
+        /**
+         * Appends automaton. If the source graph is given and both the automaton and the previous stage are
+         * deterministic, then they are composed into a single automaton (see {@link #fuse}), so that evaluation does not
+         * materialise intermediate outputs.
+         *
+         * @param source graph from which g was optimised (or null to never fuse it). It is assumed to be owned by
+         *               the pipeline and must not be modified afterwards.
+         */
+        public LexPipeline<N, G> append(G source, RangedGraph<Pos, Integer, E, P> g)
+                throws CompilationError.CompositionTypecheckException {
+            final AutomatonNode<G> fused = fuse(source, g);
+            if (fused == null) {
+                nodes.add(new AutomatonNode<>(source, g, spec));
+            } else {
+                nodes.set(nodes.size() - 1, fused);
+            }
             if (hoareAssertion != null) {
                 assert hoarePos != null;
                 Pair<Pos, Pos> counterexample = spec.isSubsetNondeterministic(hoareAssertion, g);
@@ -1292,8 +1622,51 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
             return this;
         }
 
+        /**
+         * Composition rhs(lhs(x)) of the last stage lhs and the new stage rhs is guaranteed to agree with
+         * the sequential evaluation only if both stages are deterministic. Then the composition is deterministic
+         * too and can be fused further with the next stage.
+         *
+         * @return the fused stage or null if the stages should remain separate
+         */
+        private AutomatonNode<G> fuse(G source, RangedGraph<Pos, Integer, E, P> g) {
+            final int budget = spec.pipelineFusionBudget;
+            if (source == null || budget == 0 || nodes.isEmpty()) return null;
+            final Node last = nodes.get(nodes.size() - 1);
+            if (!(last instanceof AutomatonNode)) return null;
+            final AutomatonNode<G> lhs = automaton(last);
+            // Product of stages that fit within the budget has at most budget^2 states, which bounds
+            // the time spent on composition
+            if (lhs.source == null || !lhs.compiled.isDeterministic() || lhs.g.size() > budget
+                    || g.size() > budget || g.isDeterministic() != null) return null;
+            final G composed = spec.compose(spec.deepClone(lhs.source), source, Pos.NONE);
+            if (spec.eagerMinimisation) {
+                try {
+                    spec.pseudoMinimize(composed);
+                } catch (CompilationError.WeightConflictingFinal e) {
+                    return null;
+                }
+            }
+            final RangedGraph<Pos, Integer, E, P> optimal = spec.optimiseGraph(composed);
+            if (optimal.size() > budget || optimal.isDeterministic() != null) return null;
+            return new AutomatonNode<>(composed, optimal, spec);
+        }
+
         public LexPipeline<N, G> append(Function<IntSeq, IntSeq> f) {
-            nodes.add(new ExternalNode(f));
+            return append(new ExternalNode(f, null, null));
+        }
+
+        /**
+         * Appends external function that was made by {@link ExternalPipelineFunction} from the given name and
+         * arguments. Unlike {@link #append(Function)}, such pipeline can be saved in a snapshot (see
+         * {@link LexUnicodeSpecification#writeSnapshot}).
+         */
+        public LexPipeline<N, G> append(String funcName, List<Pair<IntSeq, IntSeq>> args, Function<IntSeq, IntSeq> f) {
+            return append(new ExternalNode(f, funcName, new ArrayList<>(args)));
+        }
+
+        private LexPipeline<N, G> append(ExternalNode node) {
+            nodes.add(node);
             hoarePos = null;
             hoareAssertion = null;
             return this;
@@ -1313,6 +1686,50 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         }
 
         public IntSeq evaluate(IntSeq input) {
+            final EvaluationCache cache = this.cache;
+            return cache == null ? evaluateStages(input) : cache.evaluate(input);
+        }
+
+        /**
+         * Memoizes up to the given number of results of {@link #evaluate(IntSeq)} (see {@link EvaluationCache}).
+         * It should be enabled only once the pipeline is fully built. Zero disables the cache.
+         */
+        public void setCacheCapacity(int capacity) {
+            this.cache = capacity == 0 ? null : new EvaluationCache(this::evaluateStages, capacity);
+        }
+
+        /**
+         * @return cache with hit and miss statistics or null if caching is disabled
+         */
+        public EvaluationCache getCache() {
+            return cache;
+        }
+
+        /**
+         * Evaluates all nondeterministic automata of the pipeline by lazily determinizing them (see
+         * {@link LazyDfaEvaluator}). It should be enabled only once the pipeline is fully built.
+         *
+         * @param capacity maximal number of cached states per automaton and thread. Zero disables lazy
+         *                 determinization.
+         * @return number of automata that are determinized lazily
+         */
+        public int determinizeLazily(int capacity) {
+            int count = 0;
+            for (Node node : nodes) {
+                if (node instanceof AutomatonNode) {
+                    final AutomatonNode<?> automaton = (AutomatonNode<?>) node;
+                    if (capacity == 0 || automaton.compiled.isDeterministic()) {
+                        automaton.lazyDfa = null;
+                    } else {
+                        automaton.lazyDfa = LazyDfaEvaluator.perThread(automaton.compiled, capacity);
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        private IntSeq evaluateStages(IntSeq input) {
             for (Node node : nodes) {
                 if (input == null)
                     break;
@@ -1320,6 +1737,100 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
             }
             return input;
         }
+
+        /**
+         * Lazy counterpart of {@link #evaluate(IntSeq)} that passes output of every stage to the next one
+         * symbol by symbol (see {@link StreamingPipeline}). A new instance is returned on every call, because it
+         * is not thread-safe.
+         */
+        public StreamingPipeline makeStreamingEvaluator() {
+            final StreamingPipeline streaming = new StreamingPipeline();
+            for (Node node : nodes) {
+                if (node instanceof AutomatonNode) {
+                    streaming.append(((AutomatonNode<?>) node).compiled);
+                } else {
+                    streaming.append(((ExternalNode) node).f);
+                }
+            }
+            return streaming;
+        }
+
+        /**
+         * Evaluates arbitrarily long input without materialising intermediate outputs of stages.
+         *
+         * @return true if the input is accepted
+         */
+        public boolean evaluate(Reader in, Writer out) throws IOException {
+            return makeStreamingEvaluator().evaluate(in, out);
+        }
+
+        /**
+         * Evaluates inputs with every stage running on its own thread (see {@link PipelinedEvaluation}).
+         * Results are passed to the sink on the calling thread in the same order as inputs.
+         */
+        public void evaluatePipelined(Iterator<IntSeq> inputs, Consumer<IntSeq> sink) throws InterruptedException {
+            PipelinedEvaluation.evaluateAll(inputs, stages(), sink);
+        }
+
+        public List<IntSeq> evaluatePipelined(List<IntSeq> inputs) throws InterruptedException {
+            return PipelinedEvaluation.evaluateAll(inputs, stages());
+        }
+
+        /**
+         * Immutable copy of this pipeline that does not reference the compiler. The cache (if enabled) is
+         * not shared but a new one of the same capacity is created.
+         */
+        public CompiledPipeline compile() {
+            final ArrayList<CompiledGraph> graphs = new ArrayList<>(nodes.size());
+            for (Node node : nodes) {
+                graphs.add(node instanceof AutomatonNode ? ((AutomatonNode<?>) node).compiled : null);
+            }
+            final EvaluationCache cache = this.cache;
+            return new CompiledPipeline(graphs, stages(), cache == null ? 0 : cache.getCapacity());
+        }
+
+        /**
+         * Every stage as a function that references only the compiled graph (or the external function) and
+         * not the node, which holds the compiler
+         */
+        private List<Function<IntSeq, IntSeq>> stages() {
+            final ArrayList<Function<IntSeq, IntSeq>> stages = new ArrayList<>(nodes.size());
+            for (Node node : nodes) {
+                if (node instanceof AutomatonNode) {
+                    final AutomatonNode<?> automaton = (AutomatonNode<?>) node;
+                    final Function<IntSeq, IntSeq> lazyDfa = automaton.lazyDfa;
+                    stages.add(lazyDfa == null ? automaton.evaluator : lazyDfa);
+                } else {
+                    stages.add(((ExternalNode) node).f);
+                }
+            }
+            return stages;
+        }
+
+        /**
+         * Evaluates all inputs in parallel on the common {@link ForkJoinPool}. External functions used in the
+         * pipeline must be thread-safe.
+         *
+         * @return outputs in the same order as inputs (null for rejected inputs)
+         */
+        public List<IntSeq> evaluateAll(List<IntSeq> inputs) {
+            return evaluateAll(inputs, ForkJoinPool.commonPool());
+        }
+
+        public List<IntSeq> evaluateAll(List<IntSeq> inputs, ForkJoinPool pool) {
+            return BatchEvaluation.evaluateAll(inputs, this::evaluate, pool);
+        }
+
+        /**
+         * Evaluates inputs in parallel, chunk by chunk, passing outputs to the sink in the same order as inputs
+         */
+        public void evaluateAll(Stream<IntSeq> inputs, Consumer<IntSeq> sink) {
+            evaluateAll(inputs, sink, ForkJoinPool.commonPool());
+        }
+
+        public void evaluateAll(Stream<IntSeq> inputs, Consumer<IntSeq> sink, ForkJoinPool pool) {
+            BatchEvaluation.evaluateAll(inputs.iterator(), this::evaluate, sink, pool);
+        }
     }
 
 
@@ -1331,6 +1842,13 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         return pipelines.get(name);
     }
 
+    /**
+     * @return unmodifiable view of all pipelines (by names without the @ sign)
+     */
+    public Map<String, LexPipeline<N, G>> getPipelines() {
+        return Collections.unmodifiableMap(pipelines);
+    }
+
     @Override
     public LexPipeline<N, G> makeNewPipeline() {
         return new LexPipeline<N, G>(this);
@@ -1350,13 +1868,15 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
             throws CompilationError.CompositionTypecheckException, CompilationError.WeightConflictingFinal {
         if (eagerMinimisation)
             pseudoMinimize(g);
-        return lexPipeline.append(optimiseGraph(g));
+        return lexPipeline.append(pipelineFusionBudget == 0 ? null : g, optimiseGraph(g));
     }
 
     @Override
     public LexPipeline<N, G> appendExternalFunction(Pos pos, LexPipeline<N, G> lexPipeline, String funcName,
                                                     List<Pair<IntSeq, IntSeq>> args) {
-        return lexPipeline.append(externalPipelineFunction.make(funcName, args));
+        // the parser reuses the list of arguments
+        final List<Pair<IntSeq, IntSeq>> copy = Collections.unmodifiableList(new ArrayList<>(args));
+        return lexPipeline.append(funcName, copy, externalPipelineFunction.make(funcName, copy));
     }
 
     @Override
@@ -1390,19 +1910,7 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
      * (source outWeight outStr)*
      **/
     public void compressBinary(G g, DataOutputStream out) throws IOException {
-        final LinkedHashMap<N, Integer> vertexToIndex = new LinkedHashMap<>();
-        g.collectVertices((N n) -> {
-                    class Ref {
-                        boolean computed = false;
-                    }
-                    final Ref ref = new Ref();
-                    vertexToIndex.computeIfAbsent(n, k -> {
-                        ref.computed = true;
-                        return vertexToIndex.size();
-                    });
-                    return ref.computed;
-                }
-                , v -> null, (n, e) -> null);
+        final LinkedHashMap<N, Integer> vertexToIndex = indexVertices(g);
         out.writeInt(vertexToIndex.size());//size
         final P eps = g.getEpsilon();
         if (eps == null) {
@@ -1456,6 +1964,23 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         }
     }
 
+    private LinkedHashMap<N, Integer> indexVertices(G g) {
+        final LinkedHashMap<N, Integer> vertexToIndex = new LinkedHashMap<>();
+        g.collectVertices((N n) -> {
+                    class Ref {
+                        boolean computed = false;
+                    }
+                    final Ref ref = new Ref();
+                    vertexToIndex.computeIfAbsent(n, k -> {
+                        ref.computed = true;
+                        return vertexToIndex.size();
+                    });
+                    return ref.computed;
+                }
+                , v -> null, (n, e) -> null);
+        return vertexToIndex;
+    }
+
     public G decompressBinary(Pos meta, DataInputStream in) throws IOException {
         final G g = createEmptyGraph();
         final int size = in.readInt();//size
@@ -1502,6 +2027,475 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         return g;
     }
 
+    /**
+     * First int of snapshot written by {@link LexUnicodeSpecification#writeSnapshot}
+     */
+    public static final int SNAPSHOT_MAGIC = 0xFF4D5353;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * Saves all variables (except for the built-in ones, which every parser defines on its own) and pipelines,
+     * so that they can be restored with {@link LexUnicodeSpecification#readSnapshot} without parsing or
+     * optimising anything. Graphs are stored in optimised form (see
+     * {@link LexUnicodeSpecification#compressOptimised}). External functions of pipelines are stored by name and
+     * arguments and made anew upon loading.
+     * <p>
+     * magic version
+     * varNumber (name pos alwaysCopy graph)^varNumber
+     * pipelineNumber (name pos? cacheCapacity stageNumber (isExternal (funcName argNumber (in out?)^argNumber | graph))^stageNumber
+     * (hoarePos hoareGraph)?)^pipelineNumber
+     *
+     * @throws IllegalArgumentException if some pipeline has an external function that was given directly
+     *                                  (see {@link LexPipeline#append(Function)}) instead of by name
+     **/
+    public void writeSnapshot(DataOutputStream out) throws IOException, CompilationError {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        final ArrayList<Var<N, G>> vars = new ArrayList<>();
+        for (Var<N, G> var : variableAssignments.values()) {
+            if (var.pos != Pos.NONE) vars.add(var);
+        }
+        out.writeInt(vars.size());//varNumber
+        for (Var<N, G> var : vars) {
+            out.writeUTF(var.name);//name
+            writePos(out, var.pos);//pos
+            out.writeBoolean(var.alwaysCopy);//alwaysCopy
+            compressOptimised(getOptimised(var), out);//graph
+        }
+        out.writeInt(pipelines.size());//pipelineNumber
+        for (Entry<String, LexPipeline<N, G>> named : pipelines.entrySet()) {
+            final LexPipeline<N, G> pipeline = named.getValue();
+            out.writeUTF(named.getKey());//name
+            out.writeBoolean(pipeline.pos != null);
+            if (pipeline.pos != null) writePos(out, pipeline.pos);//pos
+            final EvaluationCache cache = pipeline.cache;
+            out.writeInt(cache == null ? 0 : cache.getCapacity());//cacheCapacity
+            out.writeInt(pipeline.nodes.size());//stageNumber
+            for (LexPipeline.Node node : pipeline.nodes) {
+                if (node instanceof LexPipeline.AutomatonNode) {
+                    out.writeBoolean(false);//isExternal
+                    compressOptimised(((LexPipeline.AutomatonNode<?>) node).g, out);//graph
+                } else {
+                    final LexPipeline.ExternalNode external = (LexPipeline.ExternalNode) node;
+                    if (external.funcName == null) {
+                        throw new IllegalArgumentException("Pipeline @" + named.getKey()
+                                + " has an anonymous external function");
+                    }
+                    out.writeBoolean(true);//isExternal
+                    out.writeUTF(external.funcName);//funcName
+                    out.writeInt(external.args.size());//argNumber
+                    for (Pair<IntSeq, IntSeq> arg : external.args) {
+                        out.writeUTF(arg.l().toUnicodeString());//in
+                        out.writeBoolean(arg.r() != null);
+                        if (arg.r() != null) out.writeUTF(arg.r().toUnicodeString());//out
+                    }
+                }
+            }
+            out.writeBoolean(pipeline.hoareAssertion != null);
+            if (pipeline.hoareAssertion != null) {
+                writePos(out, pipeline.hoarePos);//hoarePos
+                compressOptimised(pipeline.hoareAssertion, out);//hoareGraph
+            }
+        }
+    }
+
+    /**
+     * Restores variables and pipelines saved by {@link LexUnicodeSpecification#writeSnapshot}. They are added
+     * to those already defined in this specification.
+     */
+    public void readSnapshot(DataInputStream in) throws IOException, CompilationError {
+        if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a snapshot");
+        final int version = in.readInt();
+        if (version != SNAPSHOT_VERSION) throw new IOException("Unsupported version " + version);
+        for (int i = in.readInt(); i > 0; i--) {
+            final String name = in.readUTF();//name
+            final Pos pos = readPos(in);//pos
+            final boolean alwaysCopy = in.readBoolean();//alwaysCopy
+            final G g = loadOptimised(pos, in);//graph
+            introduceExternalVariable(name, pos, g, alwaysCopy);
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            final String name = in.readUTF();//name
+            final LexPipeline<N, G> pipeline = makeNewPipeline();
+            pipeline.pos = in.readBoolean() ? readPos(in) : null;//pos
+            final int cacheCapacity = in.readInt();//cacheCapacity
+            for (int stage = in.readInt(); stage > 0; stage--) {
+                if (in.readBoolean()) {//isExternal
+                    final String funcName = in.readUTF();//funcName
+                    final ArrayList<Pair<IntSeq, IntSeq>> args = new ArrayList<>();
+                    for (int arg = in.readInt(); arg > 0; arg--) {
+                        final IntSeq argIn = new IntSeq(in.readUTF());//in
+                        final IntSeq argOut = in.readBoolean() ? new IntSeq(in.readUTF()) : null;//out
+                        args.add(Pair.of(argIn, argOut));
+                    }
+                    pipeline.append(funcName, args, externalPipelineFunction.make(funcName, args));
+                } else {
+                    pipeline.append(null, decompressOptimised(Pos.NONE, in));//graph
+                }
+            }
+            if (in.readBoolean()) {
+                pipeline.hoarePos = readPos(in);//hoarePos
+                pipeline.hoareAssertion = decompressOptimised(pipeline.hoarePos, in);//hoareGraph
+            }
+            pipeline.setCacheCapacity(cacheCapacity);
+            registerNewPipeline(pipeline.pos, pipeline, name);
+        }
+    }
+
+    private static void writePos(DataOutputStream out, Pos pos) throws IOException {
+        out.writeUTF(pos.getFile());
+        out.writeInt(pos.getLine());
+        out.writeInt(pos.getColumn());
+    }
+
+    private static Pos readPos(DataInputStream in) throws IOException {
+        final String file = in.readUTF();
+        final int line = in.readInt();
+        return new Pos(file, line, in.readInt());
+    }
+
+    /**
+     * First int of binary format produced by {@link LexUnicodeSpecification#compressCompact}. It is negative,
+     * so it can never be mistaken for the number of states written by {@link LexUnicodeSpecification#compressBinary}
+     */
+    public static final int COMPACT_MAGIC = 0xFF4D4343;
+    private static final int COMPACT_VERSION = 1;
+    private static final int COMPACT_DEFLATED = 1;
+
+    /**
+     * Same graph as {@link LexUnicodeSpecification#compressBinary} but in a much smaller form. All numbers are
+     * varints (see {@link VarInts}). Range bounds and targets are zigzag coded as deltas (from the previous
+     * edge of the same vertex and from the source vertex respectively). Outputs are interned in a table of strings
+     * and edges refer to them by index (0 is the empty output). Everything after the header may be
+     * additionally compressed with {@link Deflater}.
+     * <p>
+     * magic version flags
+     * size stringNumber (length codepoint^length)^stringNumber
+     * isEpsilon (weight out)?
+     * (transitionNumber (from to target weight out)^transitionNumber)^size
+     * initNumber (from to target weight out)^initNumber
+     * finalNumber (source weight out)^finalNumber
+     *
+     * @param deflate whether to compress the body with {@link Deflater}
+     **/
+    public void compressCompact(G g, OutputStream out, boolean deflate) throws IOException {
+        final LinkedHashMap<N, Integer> vertexToIndex = indexVertices(g);
+        final LinkedHashMap<IntSeq, Integer> strings = new LinkedHashMap<>();
+        strings.put(IntSeq.Epsilon, 0);
+        final Function<IntSeq, Integer> intern = str -> strings.computeIfAbsent(str, k -> strings.size());
+        final P eps = g.getEpsilon();
+        if (eps != null) intern.apply(eps.out);
+        for (N vertex : vertexToIndex.keySet()) {
+            for (Entry<E, N> transition : (Iterable<Entry<E, N>>) () -> g.iterator(vertex)) {
+                intern.apply(transition.getKey().out);
+            }
+            final P fin = g.getFinalEdge(vertex);
+            if (fin != null) intern.apply(fin.out);
+        }
+        for (Entry<E, N> init : (Iterable<Entry<E, N>>) () -> g.iterateInitialEdges()) {
+            intern.apply(init.getKey().out);
+        }
+        final DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(COMPACT_MAGIC);
+        header.writeByte(COMPACT_VERSION);
+        header.writeByte(deflate ? COMPACT_DEFLATED : 0);
+        header.flush();
+        final Deflater deflater = deflate ? new Deflater(Deflater.BEST_COMPRESSION) : null;
+        final DeflaterOutputStream deflated = deflate ? new DeflaterOutputStream(out, deflater, 1 << 16) : null;
+        final OutputStream body = new BufferedOutputStream(deflate ? deflated : out, 1 << 16);
+        VarInts.write(body, vertexToIndex.size());//size
+        VarInts.write(body, strings.size() - 1);//stringNumber
+        for (IntSeq str : strings.keySet()) {
+            if (str.isEmpty()) continue;
+            VarInts.write(body, str.size());//length
+            for (int i = 0; i < str.size(); i++) VarInts.write(body, str.at(i));//codepoint
+        }
+        if (eps == null) {
+            body.write(0);//isEpsilon
+        } else {
+            body.write(1);//isEpsilon
+            VarInts.writeSigned(body, eps.weight);//weight
+            VarInts.write(body, strings.get(eps.out));//out
+        }
+        final ArrayList<Entry<E, N>> edges = new ArrayList<>();
+        final Comparator<Entry<E, N>> byRange = Comparator.comparing(Entry::getKey);
+        for (Entry<N, Integer> vertexIdx : vertexToIndex.entrySet()) {
+            edges.clear();
+            g.iterator(vertexIdx.getKey()).forEachRemaining(edges::add);
+            edges.sort(byRange);
+            VarInts.write(body, edges.size());//transitionNumber
+            writeCompactEdges(body, edges, vertexIdx.getValue(), vertexToIndex, strings);
+        }
+        edges.clear();
+        g.iterateInitialEdges().forEachRemaining(edges::add);
+        edges.sort(byRange);
+        VarInts.write(body, edges.size());//initNumber
+        writeCompactEdges(body, edges, 0, vertexToIndex, strings);
+        int finalNumber = 0;
+        for (N vertex : vertexToIndex.keySet()) {
+            if (g.getFinalEdge(vertex) != null) finalNumber++;
+        }
+        VarInts.write(body, finalNumber);//finalNumber
+        int prevSource = 0;
+        for (Entry<N, Integer> vertexIdx : vertexToIndex.entrySet()) {
+            final P fin = g.getFinalEdge(vertexIdx.getKey());
+            if (fin != null) {
+                VarInts.write(body, vertexIdx.getValue() - prevSource);//source
+                VarInts.writeSigned(body, fin.weight);//weight
+                VarInts.write(body, strings.get(fin.out));//out
+                prevSource = vertexIdx.getValue();
+            }
+        }
+        body.flush();
+        if (deflate) {
+            deflated.finish();
+            deflater.end();
+        }
+    }
+
+    private void writeCompactEdges(OutputStream body, List<Entry<E, N>> edges, int source,
+                                   Map<N, Integer> vertexToIndex, Map<IntSeq, Integer> strings) throws IOException {
+        int prevFrom = minimal();
+        for (Entry<E, N> transition : edges) {
+            final E edge = transition.getKey();
+            VarInts.writeSigned(body, edge.fromExclusive - prevFrom);//from
+            VarInts.write(body, edge.toInclusive - edge.fromExclusive);//to
+            VarInts.writeSigned(body, vertexToIndex.get(transition.getValue()) - source);//target
+            VarInts.writeSigned(body, edge.weight);//weight
+            VarInts.write(body, strings.get(edge.out));//out
+            prevFrom = edge.fromExclusive;
+        }
+    }
+
+    /**
+     * Inverse of {@link LexUnicodeSpecification#compressCompact}. All vertices are annotated with the given
+     * position.
+     */
+    public G decompressCompact(Pos meta, InputStream in) throws IOException {
+        final DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != COMPACT_MAGIC) throw new IOException("Not a compact transducer");
+        final int version = header.readUnsignedByte();
+        if (version != COMPACT_VERSION) throw new IOException("Unsupported version " + version);
+        final boolean deflated = (header.readUnsignedByte() & COMPACT_DEFLATED) != 0;
+        final Inflater inflater = deflated ? new Inflater() : null;
+        try {
+            return decompressCompactBody(meta, new BufferedInputStream(
+                    deflated ? new InflaterInputStream(in, inflater, 1 << 16) : in, 1 << 16));
+        } finally {
+            if (deflated) inflater.end();
+        }
+    }
+
+    private G decompressCompactBody(Pos meta, InputStream body) throws IOException {
+        final G g = createEmptyGraph();
+        final int size = VarInts.read(body);//size
+        final ArrayList<N> indexToVertex = Specification.filledArrayListFunc(size, i -> g.create(meta));
+        final int stringNumber = VarInts.read(body);
+        final ArrayList<IntSeq> strings = new ArrayList<>(stringNumber + 1);
+        strings.add(IntSeq.Epsilon);
+        for (int i = 0; i < stringNumber; i++) {
+            final int[] str = new int[VarInts.read(body)];//length
+            for (int j = 0; j < str.length; j++) str[j] = VarInts.read(body);//codepoint
+            strings.add(new IntSeq(str));
+        }
+        final int isEpsilon = body.read();
+        if (isEpsilon < 0) throw new EOFException();
+        if (isEpsilon != 0) {
+            final int epsWeight = VarInts.readSigned(body);// weight
+            g.setEpsilon(createPartialEdge(strings.get(VarInts.read(body)), epsWeight));// out
+        }
+        for (int vertexIdx = 0; vertexIdx < size; vertexIdx++) {
+            final N vertex = indexToVertex.get(vertexIdx);
+            int prevFrom = minimal();
+            for (int i = VarInts.read(body); i > 0; i--) {
+                final int from = prevFrom + VarInts.readSigned(body);//from
+                final int to = from + VarInts.read(body);//to
+                final int targetIdx = vertexIdx + VarInts.readSigned(body);//target
+                final int weight = VarInts.readSigned(body);//weight
+                final IntSeq out = strings.get(VarInts.read(body));//out
+                g.add(vertex, createFullEdge(from, to, createPartialEdge(out, weight)), indexToVertex.get(targetIdx));
+                prevFrom = from;
+            }
+        }
+        int prevFrom = minimal();
+        for (int i = VarInts.read(body); i > 0; i--) {
+            final int from = prevFrom + VarInts.readSigned(body);//from
+            final int to = from + VarInts.read(body);//to
+            final int targetIdx = VarInts.readSigned(body);//target
+            final int weight = VarInts.readSigned(body);//weight
+            final IntSeq out = strings.get(VarInts.read(body));//out
+            g.addInitialEdge(indexToVertex.get(targetIdx), createFullEdge(from, to, createPartialEdge(out, weight)));
+            prevFrom = from;
+        }
+        int source = 0;
+        for (int i = VarInts.read(body); i > 0; i--) {
+            source += VarInts.read(body);//source
+            final int weight = VarInts.readSigned(body);//weight
+            final IntSeq out = strings.get(VarInts.read(body));//out
+            g.setFinalEdge(indexToVertex.get(source), createPartialEdge(out, weight));
+        }
+        return g;
+    }
+
+    /**
+     * First int of binary format produced by {@link LexUnicodeSpecification#compressOptimised}. It is negative,
+     * so it can never be mistaken for the number of states written by {@link LexUnicodeSpecification#compressBinary}
+     */
+    public static final int OPTIMISED_MAGIC = 0xFF4D5247;
+    private static final int OPTIMISED_VERSION = 1;
+
+    /**
+     * Serializes optimised graph, so that it can be loaded without optimising it again.
+     * Edges shared by several ranges are written only once per state.
+     * <p>
+     * magic version size initial
+     * (isAccepting (weight out)? edgeNumber (from to weight out)^edgeNumber
+     * rangeNumber (input transNumber (edge target)^transNumber)^rangeNumber)^size
+     **/
+    public void compressOptimised(RangedGraph<Pos, Integer, E, P> g, DataOutputStream out) throws IOException {
+        out.writeInt(OPTIMISED_MAGIC);
+        out.writeInt(OPTIMISED_VERSION);
+        out.writeInt(g.size());//size
+        out.writeInt(g.initial);//initial
+        final IdentityHashMap<E, Integer> edgeToIndex = new IdentityHashMap<>();
+        final ArrayList<E> edges = new ArrayList<>();
+        for (int state = 0; state < g.size(); state++) {
+            final P fin = g.accepting.get(state);
+            if (fin == null) {
+                out.writeByte(0);//isAccepting
+            } else {
+                out.writeByte(1);//isAccepting
+                out.writeInt(fin.weight);//weight
+                out.writeUTF(fin.out.toUnicodeString());//out
+            }
+            edgeToIndex.clear();
+            edges.clear();
+            final ArrayList<Range<Integer, List<RangedGraph.Trans<E>>>> ranges = g.graph.get(state);
+            for (Range<Integer, List<RangedGraph.Trans<E>>> range : ranges) {
+                for (RangedGraph.Trans<E> tr : range.edges()) {
+                    edgeToIndex.computeIfAbsent(tr.edge, e -> {
+                        edges.add(e);
+                        return edges.size() - 1;
+                    });
+                }
+            }
+            out.writeInt(edges.size());//edgeNumber
+            for (E edge : edges) {
+                out.writeInt(edge.fromExclusive);//from
+                out.writeInt(edge.toInclusive);//to
+                out.writeInt(edge.weight);//weight
+                out.writeUTF(edge.out.toUnicodeString());//out
+            }
+            out.writeInt(ranges.size());//rangeNumber
+            for (Range<Integer, List<RangedGraph.Trans<E>>> range : ranges) {
+                out.writeInt(range.input());//input
+                out.writeInt(range.edges().size());//transNumber
+                for (RangedGraph.Trans<E> tr : range.edges()) {
+                    out.writeInt(edgeToIndex.get(tr.edge));//edge
+                    out.writeInt(tr.targetState);//target
+                }
+            }
+        }
+    }
+
+    /**
+     * Inverse of {@link LexUnicodeSpecification#compressOptimised}. All states are annotated with the given
+     * position.
+     */
+    public RangedGraph<Pos, Integer, E, P> decompressOptimised(Pos meta, DataInputStream in) throws IOException {
+        if (in.readInt() != OPTIMISED_MAGIC) throw new IOException("Not an optimised transducer");
+        final int version = in.readInt();
+        if (version != OPTIMISED_VERSION) throw new IOException("Unsupported version " + version);
+        final int size = in.readInt();//size
+        final int initial = in.readInt();//initial
+        if (initial < 0 || initial >= size) throw new IOException("Initial state " + initial + " out of bounds");
+        final ArrayList<ArrayList<Range<Integer, List<RangedGraph.Trans<E>>>>> graph = new ArrayList<>(size);
+        final ArrayList<P> accepting = new ArrayList<>(size);
+        final ArrayList<Pos> indexToState = new ArrayList<>(size);
+        final ArrayList<E> edges = new ArrayList<>();
+        for (int state = 0; state < size; state++) {
+            if (in.readBoolean()) {//isAccepting
+                final int weight = in.readInt();//weight
+                accepting.add(new P(new IntSeq(in.readUTF()), weight));//out
+            } else {
+                accepting.add(null);
+            }
+            indexToState.add(meta);
+            edges.clear();
+            final int edgeNumber = in.readInt();
+            for (int i = 0; i < edgeNumber; i++) {
+                final int from = in.readInt();//from
+                final int to = in.readInt();//to
+                final int weight = in.readInt();//weight
+                edges.add(new E(from, to, new IntSeq(in.readUTF()), weight));//out
+            }
+            final int rangeNumber = in.readInt();
+            final ArrayList<Range<Integer, List<RangedGraph.Trans<E>>>> ranges = new ArrayList<>(rangeNumber);
+            for (int i = 0; i < rangeNumber; i++) {
+                final int input = in.readInt();//input
+                final int transNumber = in.readInt();
+                final List<RangedGraph.Trans<E>> trans;
+                if (transNumber == 0) {
+                    trans = Collections.emptyList();
+                } else {
+                    trans = new ArrayList<>(transNumber);
+                    for (int j = 0; j < transNumber; j++) {
+                        final E edge = edges.get(in.readInt());//edge
+                        final int target = in.readInt();//target
+                        if (target < 0 || target >= size) {
+                            throw new IOException("Target state " + target + " out of bounds");
+                        }
+                        trans.add(new RangedGraph.Trans<>(edge, target));
+                    }
+                }
+                ranges.add(new RangeImpl<>(input, trans));
+            }
+            graph.add(ranges);
+        }
+        return new RangedGraph<>(graph, accepting, indexToState, initial);
+    }
+
+    /**
+     * Loads graph written by {@link LexUnicodeSpecification#compressOptimised}. The returned intermediate graph
+     * has one edge per range and transition. If it becomes a variable on its own (without being modified by
+     * any other operation), then the loaded optimised graph is used directly (see
+     * {@link LexUnicodeSpecification#introduceExternalVariable}).
+     */
+    public G loadOptimised(Pos meta, DataInputStream in) throws IOException {
+        return loadOptimised(meta, decompressOptimised(meta, in));
+    }
+
+    /**
+     * Same as {@link LexUnicodeSpecification#loadOptimised(Pos, DataInputStream)} but the optimised graph is
+     * already loaded (for instance from {@link MappedTransducer#toRangedGraph(Pos)})
+     */
+    public G loadOptimised(Pos meta, RangedGraph<Pos, Integer, E, P> optimal) {
+        final G g = createEmptyGraph();
+        final ArrayList<N> indexToVertex = Specification.filledArrayListFunc(optimal.size(), i -> g.create(meta));
+        for (int state = 0; state < optimal.size(); state++) {
+            final N vertex = indexToVertex.get(state);
+            int fromExclusive = minimal();
+            for (Range<Integer, List<RangedGraph.Trans<E>>> range : optimal.graph.get(state)) {
+                for (RangedGraph.Trans<E> tr : range.edges()) {
+                    final E edge = new E(fromExclusive, range.input(), tr.edge.out, tr.edge.weight);
+                    g.add(vertex, edge, indexToVertex.get(tr.targetState));
+                    if (state == optimal.initial) {
+                        g.addInitialEdge(indexToVertex.get(tr.targetState),
+                                new E(fromExclusive, range.input(), tr.edge.out, tr.edge.weight));
+                    }
+                }
+                fromExclusive = range.input();
+            }
+            final P fin = optimal.accepting.get(state);
+            if (fin != null) {
+                if (state == optimal.initial) g.setEpsilon(fin);
+                g.setFinalEdge(vertex, fin);
+            }
+        }
+        preoptimised.put(g, optimal);
+        return g;
+    }
+
     public G subtract(G lhs, G rhs) {
         return subtract(optimiseGraph(lhs), optimiseGraph(rhs));
     }
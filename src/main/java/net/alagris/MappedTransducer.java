@@ -0,0 +1,259 @@
+package net.alagris;
+
+import net.alagris.LexUnicodeSpecification.E;
+import net.alagris.LexUnicodeSpecification.P;
+import net.alagris.Specification.Range;
+import net.alagris.Specification.RangeImpl;
+import net.alagris.Specification.RangedGraph;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Deterministic {@link CompiledGraph} evaluated directly from a memory-mapped file. Nothing is deserialised
+ * upon opening, so opening takes constant time regardless of the size of transducer, and all JVMs that map
+ * the same file share a single copy of it in the page cache.
+ * <p>
+ * The file is a header followed by the arrays of {@link CompiledGraph}, each stored as a section of
+ * little-endian ints:
+ * <pre>
+ * magic version minimal initial size rangeCount transCount poolSize
+ * rangeOffset[size+1] rangeInput[rangeCount] transOffset[rangeCount+1]
+ * transTarget[transCount] transWeight[transCount] transOutBegin[transCount] transOutEnd[transCount]
+ * finalOutBegin[size] finalOutEnd[size] finalWeight[size] outputPool[poolSize]
+ * </pre>
+ * Instances are immutable and can be shared between threads.
+ */
+public final class MappedTransducer {
+    /**
+     * First int of file. Read as big-endian (like {@link java.io.DataInputStream} does) it becomes
+     * <tt>Integer.reverseBytes(MAGIC)</tt>, which is negative, so it can never be mistaken for the other
+     * formats read by <tt>import!</tt>.
+     */
+    public static final int MAGIC = 0xFE504D4D;
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+
+    private final IntBuffer data;
+    private final int minimal;
+    private final int initial;
+    private final int size;
+    private final int rangeOffset;
+    private final int rangeInput;
+    private final int transOffset;
+    private final int transTarget;
+    private final int transWeight;
+    private final int transOutBegin;
+    private final int transOutEnd;
+    private final int finalOutBegin;
+    private final int finalOutEnd;
+    private final int finalWeight;
+    private final int outputPool;
+
+    private MappedTransducer(IntBuffer data) throws IOException {
+        if (data.limit() < HEADER || data.get(0) != MAGIC) throw new IOException("Not a mapped transducer");
+        if (data.get(1) != VERSION) throw new IOException("Unsupported version " + data.get(1));
+        this.data = data;
+        this.minimal = data.get(2);
+        this.initial = data.get(3);
+        this.size = data.get(4);
+        final int rangeCount = data.get(5);
+        final int transCount = data.get(6);
+        final int poolSize = data.get(7);
+        rangeOffset = HEADER;
+        rangeInput = rangeOffset + size + 1;
+        transOffset = rangeInput + rangeCount;
+        transTarget = transOffset + rangeCount + 1;
+        transWeight = transTarget + transCount;
+        transOutBegin = transWeight + transCount;
+        transOutEnd = transOutBegin + transCount;
+        finalOutBegin = transOutEnd + transCount;
+        finalOutEnd = finalOutBegin + size;
+        finalWeight = finalOutEnd + size;
+        outputPool = finalWeight + size;
+        if (outputPool + (long) poolSize != data.limit() || initial < 0 || initial >= size) {
+            throw new IOException("Corrupted mapped transducer");
+        }
+    }
+
+    /**
+     * Maps the file read-only. The file may be closed (but not modified) afterwards.
+     */
+    public static MappedTransducer open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("File " + file + " is too large");
+            final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedTransducer(mapped.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer());
+        }
+    }
+
+    /**
+     * Wraps buffer that holds the contents of mapped file (for instance one that was never written to disk)
+     */
+    public static MappedTransducer wrap(ByteBuffer buffer) throws IOException {
+        return new MappedTransducer(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer());
+    }
+
+    /**
+     * Writes graph in the format expected by {@link #open(Path)}. Dense and class tables are not stored.
+     *
+     * @throws IllegalArgumentException if the graph is nondeterministic or reads UTF-8
+     */
+    public static void write(CompiledGraph g, Path file) throws IOException {
+        if (!g.deterministic) throw new IllegalArgumentException("Only deterministic graphs can be mapped");
+        if (g.utf8) throw new IllegalArgumentException("UTF-8 graphs cannot be mapped");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            write(channel, buffer, new int[]{MAGIC, VERSION, g.minimal, g.initial, g.size(), g.rangeInput.length,
+                    g.transTarget.length, g.outputPool.length});
+            write(channel, buffer, g.rangeOffset);
+            write(channel, buffer, g.rangeInput);
+            write(channel, buffer, g.transOffset);
+            write(channel, buffer, g.transTarget);
+            write(channel, buffer, g.transWeight);
+            write(channel, buffer, g.transOutBegin);
+            write(channel, buffer, g.transOutEnd);
+            write(channel, buffer, g.finalOutBegin);
+            write(channel, buffer, g.finalOutEnd);
+            write(channel, buffer, g.finalWeight);
+            write(channel, buffer, g.outputPool);
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, int[] section) throws IOException {
+        for (int i : section) {
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                while (buffer.hasRemaining()) channel.write(buffer);
+                buffer.clear();
+            }
+            buffer.putInt(i);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getMinimal() {
+        return minimal;
+    }
+
+    /**
+     * Same as {@link CompiledGraph#rangeIndex} but without dense or class tables
+     */
+    private int rangeIndex(int state, int input) {
+        int low = data.get(rangeOffset + state);
+        int high = data.get(rangeOffset + state + 1) - 1;
+        final int end = high;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int midVal = data.get(rangeInput + mid);
+            if (midVal < input)
+                low = mid + 1;
+            else if (midVal > input)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return low > end ? -1 : low;
+    }
+
+    /**
+     * Appends output to the given buffer (see {@link Evaluator#evaluate(int[], int, int, IntSeqBuilder)}).
+     *
+     * @return number of appended symbols or {@link Evaluator#REJECTED} (in which case nothing is appended)
+     */
+    public int evaluate(int[] input, int offset, int length, IntSeqBuilder out) {
+        final int before = out.size();
+        int state = initial;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            final int in = input[i];
+            final int range = rangeIndex(state, in);
+            final int t;
+            if (range == -1 || (t = data.get(transOffset + range)) == data.get(transOffset + range + 1)) {
+                out.truncate(before);
+                return Evaluator.REJECTED;
+            }
+            for (int k = data.get(transOutBegin + t), e = data.get(transOutEnd + t); k < e; k++) {
+                final int symbol = data.get(outputPool + k);
+                out.append(symbol == minimal ? in : symbol);
+            }
+            state = data.get(transTarget + t);
+        }
+        final int finalBegin = data.get(finalOutBegin + state);
+        if (finalBegin == -1) {
+            out.truncate(before);
+            return Evaluator.REJECTED;
+        }
+        for (int k = finalBegin, e = data.get(finalOutEnd + state); k < e; k++) {
+            final int symbol = data.get(outputPool + k);
+            if (symbol != minimal) out.append(symbol);
+        }
+        return out.size() - before;
+    }
+
+    /**
+     * @return output or null if the input is rejected
+     */
+    public IntSeq evaluate(IntSeq input) {
+        final IntSeqBuilder out = new IntSeqBuilder();
+        final int length = evaluate(input.unsafe(), input.offset(), input.size(), out);
+        return length == Evaluator.REJECTED ? null : out.toIntSeq();
+    }
+
+    public String evaluate(String input) {
+        final IntSeq out = evaluate(new IntSeq(input));
+        return out == null ? null : out.toUnicodeString();
+    }
+
+    /**
+     * Reads the whole transducer back into a ranged graph (for instance to use it as a building block of other
+     * transducers). Every state is annotated with the given position.
+     */
+    public RangedGraph<Pos, Integer, E, P> toRangedGraph(Pos meta) {
+        final ArrayList<ArrayList<Range<Integer, List<RangedGraph.Trans<E>>>>> graph = new ArrayList<>(size);
+        final ArrayList<P> accepting = new ArrayList<>(size);
+        final ArrayList<Pos> indexToState = new ArrayList<>(size);
+        for (int state = 0; state < size; state++) {
+            final int rangeEnd = data.get(rangeOffset + state + 1);
+            final ArrayList<Range<Integer, List<RangedGraph.Trans<E>>>> ranges = new ArrayList<>();
+            int fromExclusive = minimal;
+            for (int r = data.get(rangeOffset + state); r < rangeEnd; r++) {
+                final int input = data.get(rangeInput + r);
+                final int transEnd = data.get(transOffset + r + 1);
+                final List<RangedGraph.Trans<E>> trans = new ArrayList<>(1);
+                for (int t = data.get(transOffset + r); t < transEnd; t++) {
+                    final E edge = new E(fromExclusive, input, output(data.get(transOutBegin + t),
+                            data.get(transOutEnd + t)), data.get(transWeight + t));
+                    trans.add(new RangedGraph.Trans<>(edge, data.get(transTarget + t)));
+                }
+                ranges.add(new RangeImpl<>(input, trans.isEmpty() ? Collections.emptyList() : trans));
+                fromExclusive = input;
+            }
+            graph.add(ranges);
+            final int finalBegin = data.get(finalOutBegin + state);
+            accepting.add(finalBegin == -1 ? null : new P(output(finalBegin, data.get(finalOutEnd + state)),
+                    data.get(finalWeight + state)));
+            indexToState.add(meta);
+        }
+        return new RangedGraph<>(graph, accepting, indexToState, initial);
+    }
+
+    private IntSeq output(int begin, int end) {
+        final int[] out = new int[end - begin];
+        for (int k = begin; k < end; k++) out[k - begin] = data.get(outputPool + k);
+        return new IntSeq(out);
+    }
+}
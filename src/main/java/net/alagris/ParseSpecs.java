@@ -29,6 +29,14 @@ public interface ParseSpecs<Pipeline,Var, V, E, P, A, O extends Seq<A>, W, N, G
      */
     Var introduceVariable(String name, Pos pos, G graph, boolean alwaysCopy) throws CompilationError;
 
+    /**
+     * Same as {@link #introduceVariable} but the graph is exactly the one returned by
+     * {@link #externalFunction} (no other operation was applied to it).
+     */
+    default Var introduceExternalVariable(String name, Pos pos, G graph, boolean alwaysCopy) throws CompilationError {
+        return introduceVariable(name, pos, graph, alwaysCopy);
+    }
+
     /**
      * Get a copy of variable without consuming it. This corresponds to exponential operator in linear logic.
      *
@@ -18,6 +18,40 @@ public class ParserListener<Pipeline, Var, V, E, P, A, O extends Seq<A>, W, N, G
 
 	}
 
+	/**
+	 * Lets bodies of definitions be restored (for instance from disk) instead of
+	 * being parsed and built anew.
+	 */
+	public interface DefinitionCache<Var, G> {
+		/**
+		 * Called before the body of definition is parsed.
+		 * 
+		 * @return graph of the body or null if the body needs to be parsed
+		 */
+		G lookup(FuncDefContext definition) throws CompilationError;
+
+		/**
+		 * Called after every definition is introduced as a variable
+		 * 
+		 * @param cached true if the graph came from {@link #lookup}
+		 */
+		void introduced(FuncDefContext definition, Var var, boolean cached) throws CompilationError;
+	}
+
+	private DefinitionCache<Var, G> definitionCache;
+	/**
+	 * Definition whose body was restored by {@link #definitionCache} and is about to
+	 * be introduced
+	 */
+	private FuncDefContext restoredDefinition;
+
+	/**
+	 * @param cache null disables caching
+	 */
+	public void setDefinitionCache(DefinitionCache<Var, G> cache) {
+		this.definitionCache = cache;
+	}
+
 	public G union(Pos pos, G lhs, G rhs) throws CompilationError {
 		try {
 			return specs.specification().union(lhs, rhs, specs.specification()::epsilonUnion);
@@ -107,7 +141,7 @@ public class ParserListener<Pipeline, Var, V, E, P, A, O extends Seq<A>, W, N, G
 		}
 	}
 
-	private IntSeq parseQuotedLiteral(TerminalNode literal) throws CompilationError {
+	static IntSeq parseQuotedLiteral(TerminalNode literal) {
 		final String quotedLiteral = literal.getText();
 		final String unquotedLiteral = quotedLiteral.substring(1, quotedLiteral.length() - 1);
 		final int[] escaped = new int[unquotedLiteral.length()];
@@ -260,13 +294,71 @@ public class ParserListener<Pipeline, Var, V, E, P, A, O extends Seq<A>, W, N, G
 	public void exitFuncDef(FuncDefContext ctx) {
 		final String funcName = ctx.ID().getText();
 		final G funcBody = automata.pop();
+		final boolean restored = restoredDefinition == ctx;
+		restoredDefinition = null;
+		try {
+			final Var var;
+			if (restored || isExternalCall(ctx.mealy_union())) {
+				var = specs.introduceExternalVariable(funcName, new Pos(ctx.ID().getSymbol()), funcBody,
+						ctx.exponential != null);
+			} else {
+				var = specs.introduceVariable(funcName, new Pos(ctx.ID().getSymbol()), funcBody,
+						ctx.exponential != null);
+			}
+			if (definitionCache != null) {
+				definitionCache.introduced(ctx, var, restored);
+			}
+		} catch (CompilationError e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Pushes the body of definition restored by {@link #definitionCache} in place
+	 * of parsing it. All variables referenced by the body are consumed just as if
+	 * it was parsed.
+	 * 
+	 * @return false if the body needs to be parsed
+	 */
+	private boolean restore(FuncDefContext definition) {
 		try {
-			specs.introduceVariable(funcName, new Pos(ctx.ID().getSymbol()), funcBody, ctx.exponential != null);
+			final G body = definitionCache.lookup(definition);
+			if (body == null) {
+				return false;
+			}
+			consumeReferences(definition.mealy_union());
+			automata.push(body);
+			restoredDefinition = definition;
+			return true;
 		} catch (CompilationError e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	private void consumeReferences(ParseTree expression) throws CompilationError {
+		if (expression instanceof MealyAtomicVarIDContext) {
+			final MealyAtomicVarIDContext ctx = (MealyAtomicVarIDContext) expression;
+			if (ctx.exponential == null) {
+				var(new Pos(ctx.start), ctx.ID().getText(), false);
+			} else if (specs.borrowVariable(ctx.ID().getText()) == null) {
+				throw new CompilationError.MissingFunction(new Pos(ctx.start), ctx.ID().getText());
+			}
+		}
+		for (int i = 0; i < expression.getChildCount(); i++) {
+			consumeReferences(expression.getChild(i));
+		}
+	}
+
+	/**
+	 * @return true if the expression is nothing more than a single call to external function
+	 */
+	private static boolean isExternalCall(ParseTree expression) {
+		while (expression.getChildCount() == 1) {
+			expression = expression.getChild(0);
+		}
+		return expression instanceof MealyAtomicExternalContext;
+	}
+
 	@Override
 	public void enterHoarePipeline(HoarePipelineContext ctx) {
 
@@ -718,7 +810,16 @@ public class ParserListener<Pipeline, Var, V, E, P, A, O extends Seq<A>, W, N, G
 			}
 		});
 		try {
-			ParseTreeWalker.DEFAULT.walk(this, parser.start());
+			new ParseTreeWalker() {
+				@Override
+				public void walk(ParseTreeListener listener, ParseTree t) {
+					if (definitionCache != null && t.getParent() instanceof FuncDefContext
+							&& ((FuncDefContext) t.getParent()).mealy_union() == t && restore((FuncDefContext) t.getParent())) {
+						return;
+					}
+					super.walk(listener, t);
+				}
+			}.walk(this, parser.start());
 		} catch (RuntimeException e) {
 			if (e.getCause() instanceof CompilationError) {
 				throw (CompilationError) e.getCause();
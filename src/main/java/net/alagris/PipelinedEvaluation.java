@@ -0,0 +1,151 @@
+package net.alagris;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Evaluation of a stream of inputs by a chain of stages, where every stage runs on its own thread. Stages are
+ * connected by bounded queues, so stage k+1 can process one record while stage k is already processing the next
+ * one. Throughput scales with the number of stages as long as they take comparable time, which is useful
+ * when some stages are slow external functions. Records are passed between threads in small batches, which
+ * amortises the cost of synchronisation.
+ * <p>
+ * Inputs are read on a dedicated thread as well, while the results are passed to the sink on the calling thread
+ * in the same order as inputs (null for rejected inputs). If any stage throws an exception, evaluation stops as
+ * soon as possible and the exception is rethrown on the calling thread. Stages must be thread-safe only if
+ * the same function is used by several stages.
+ */
+public final class PipelinedEvaluation {
+
+    /**
+     * Number of batches that may wait between two stages
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    private static final int BATCH = 32;
+    /**
+     * Marks the end of input. Compared by identity.
+     */
+    private static final IntSeq[] END = new IntSeq[0];
+    private static final AtomicInteger pipelineCounter = new AtomicInteger();
+
+    private PipelinedEvaluation() {
+    }
+
+    /**
+     * Stages run on daemon threads that terminate once evaluation is over.
+     */
+    public static void evaluateAll(Iterator<IntSeq> inputs, List<? extends Function<IntSeq, IntSeq>> stages,
+                                   Consumer<IntSeq> sink) throws InterruptedException {
+        final String name = "pipeline-" + pipelineCounter.incrementAndGet() + "-stage-";
+        final AtomicInteger threadCounter = new AtomicInteger();
+        evaluateAll(inputs, stages, sink, DEFAULT_QUEUE_CAPACITY, r -> {
+            final Thread t = new Thread(r, name + threadCounter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static List<IntSeq> evaluateAll(List<IntSeq> inputs, List<? extends Function<IntSeq, IntSeq>> stages)
+            throws InterruptedException {
+        final ArrayList<IntSeq> results = new ArrayList<>(inputs.size());
+        evaluateAll(inputs.iterator(), stages, results::add);
+        return results;
+    }
+
+    /**
+     * @param queueCapacity number of batches that may wait between two stages
+     * @param threads       creates one thread for reading inputs and one thread per stage
+     * @throws InterruptedException if the calling thread is interrupted. All stage threads are interrupted then
+     *                              as well.
+     */
+    public static void evaluateAll(Iterator<IntSeq> inputs, List<? extends Function<IntSeq, IntSeq>> stages,
+                                   Consumer<IntSeq> sink, int queueCapacity, ThreadFactory threads)
+            throws InterruptedException {
+        final ArrayList<ArrayBlockingQueue<IntSeq[]>> queues = new ArrayList<>(stages.size() + 1);
+        for (int i = 0; i <= stages.size(); i++) {
+            queues.add(new ArrayBlockingQueue<>(queueCapacity));
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final ArrayList<Thread> workers = new ArrayList<>(stages.size() + 1);
+        workers.add(threads.newThread(() -> produce(inputs, queues.get(0), failure)));
+        for (int i = 0; i < stages.size(); i++) {
+            final Function<IntSeq, IntSeq> f = stages.get(i);
+            final ArrayBlockingQueue<IntSeq[]> in = queues.get(i);
+            final ArrayBlockingQueue<IntSeq[]> out = queues.get(i + 1);
+            workers.add(threads.newThread(() -> transform(f, in, out, failure)));
+        }
+        for (Thread worker : workers) worker.start();
+        final ArrayBlockingQueue<IntSeq[]> results = queues.get(stages.size());
+        boolean finished = false;
+        try {
+            IntSeq[] batch;
+            while ((batch = results.take()) != END) {
+                if (failure.get() == null) {
+                    for (IntSeq result : batch) sink.accept(result);
+                }
+            }
+            finished = true;
+        } finally {
+            if (!finished) {
+                for (Thread worker : workers) worker.interrupt();
+            }
+        }
+        final Throwable t = failure.get();
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        assert t == null : t;
+    }
+
+    private static void produce(Iterator<IntSeq> inputs, ArrayBlockingQueue<IntSeq[]> out,
+                                AtomicReference<Throwable> failure) {
+        try {
+            try {
+                while (failure.get() == null && inputs.hasNext()) {
+                    final IntSeq[] batch = new IntSeq[BATCH];
+                    int size = 0;
+                    while (size < BATCH && inputs.hasNext()) batch[size++] = inputs.next();
+                    out.put(size == BATCH ? batch : Arrays.copyOf(batch, size));
+                }
+            } catch (RuntimeException | Error e) {
+                failure.compareAndSet(null, e);
+            }
+            out.put(END);
+        } catch (InterruptedException e) {
+            // evaluation was cancelled
+        }
+    }
+
+    /**
+     * Once any stage fails, batches are still passed on (without being evaluated) until the end of input, so
+     * that no thread remains blocked on a full queue.
+     */
+    private static void transform(Function<IntSeq, IntSeq> f, ArrayBlockingQueue<IntSeq[]> in,
+                                  ArrayBlockingQueue<IntSeq[]> out, AtomicReference<Throwable> failure) {
+        try {
+            IntSeq[] batch;
+            while ((batch = in.take()) != END) {
+                if (failure.get() == null) {
+                    try {
+                        for (int i = 0; i < batch.length; i++) {
+                            if (batch[i] != null) batch[i] = f.apply(batch[i]);
+                        }
+                    } catch (RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+                out.put(batch);
+            }
+            out.put(END);
+        } catch (InterruptedException e) {
+            // evaluation was cancelled
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package net.alagris;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transducer specialized into dedicated Java code. Every deterministic {@link CompiledGraph} can be turned into
+ * a class whose state machine is a <tt>switch</tt> over states, with ranges compared against constants (in
+ * a balanced tree of comparisons) and outputs appended as constants. JIT can then inline everything, which
+ * is typically faster than interpreting the flat tables of {@link CompiledGraph}.
+ * <p>
+ * The source code is compiled at runtime with the system Java compiler (see {@link ToolProvider}) and loaded
+ * with a dedicated class loader. If no compiler is available (for instance when running on JRE), graph is
+ * nondeterministic or too large, then {@link #compile} returns null and the caller should keep using the
+ * interpreter.
+ */
+public abstract class SpecializedTransducer {
+
+    /**
+     * Large graphs produce methods that exceed JVM limits on method size and take long to compile.
+     */
+    public static final int DEFAULT_MAX_RANGES = 1024;
+    /**
+     * Ranges of a single state are compared one by one up to this count. Otherwise they are bisected.
+     */
+    private static final int LINEAR_COMPARISONS = 4;
+    /**
+     * Longer outputs are stored in constant arrays instead of being appended symbol by symbol
+     */
+    private static final int INLINED_OUTPUT = 4;
+    private static final String PACKAGE = "net.alagris.generated";
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    /**
+     * @return output or null if the input is rejected
+     */
+    public abstract IntSeq evaluate(int[] input, int offset, int length);
+
+    public IntSeq evaluate(IntSeq input) {
+        return evaluate(input.unsafe(), input.offset(), input.size());
+    }
+
+    public String evaluate(String input) {
+        final IntSeq out = evaluate(new IntSeq(input));
+        return out == null ? null : out.toUnicodeString();
+    }
+
+    /**
+     * Generates, compiles and loads specialized class.
+     *
+     * @param maxRanges budget on the total number of ranges of the graph
+     * @return instance of the specialized class or null if the graph could not be specialized
+     */
+    public static SpecializedTransducer compile(CompiledGraph g, int maxRanges) {
+        if (!g.deterministic || g.utf8 || g.rangeInput.length > maxRanges) return null;
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) return null;
+        final String simpleName = "Transducer" + classCounter.incrementAndGet();
+        final String className = PACKAGE + "." + simpleName;
+        final String source = generateSource(g, simpleName);
+        final HashMap<String, ByteArrayOutputStream> classes = new HashMap<>();
+        final JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(
+                compiler.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+                                                       FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension),
+                        kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        classes.put(name, bytes);
+                        return bytes;
+                    }
+                };
+            }
+        };
+        final JavaFileObject file = new SimpleJavaFileObject(
+                URI.create("string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        final List<String> options = new ArrayList<>();
+        options.add("-classpath");
+        options.add(classpath());
+        final Boolean success = compiler.getTask(null, fileManager, null, options, null,
+                Collections.singletonList(file)).call();
+        if (success == null || !success || !classes.containsKey(className)) return null;
+        final byte[] bytecode = classes.get(className).toByteArray();
+        final ClassLoader loader = new ClassLoader(SpecializedTransducer.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                if (!name.equals(className)) throw new ClassNotFoundException(name);
+                return defineClass(name, bytecode, 0, bytecode.length);
+            }
+        };
+        try {
+            return (SpecializedTransducer) loader.loadClass(className).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Classes of this project might not be on the system classpath (for instance when loaded by build
+     * tools), hence their location is added explicitly.
+     */
+    private static String classpath() {
+        final StringBuilder sb = new StringBuilder(System.getProperty("java.class.path"));
+        try {
+            final File location = new File(SpecializedTransducer.class.getProtectionDomain().getCodeSource()
+                    .getLocation().toURI());
+            sb.append(File.pathSeparator).append(location.getPath());
+        } catch (URISyntaxException | NullPointerException | SecurityException e) {
+            // system classpath is the only hope
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return source code of class that extends {@link SpecializedTransducer} and evaluates the graph
+     */
+    public static String generateSource(CompiledGraph g, String simpleName) {
+        assert g.deterministic;
+        final StringBuilder sb = new StringBuilder();
+        final StringBuilder constants = new StringBuilder();
+        final HashMap<IntSeq, String> constantNames = new HashMap<>();
+        sb.append("    @Override\n");
+        sb.append("    public IntSeq evaluate(int[] input, int offset, int length) {\n");
+        if (g.initial == -1) {
+            sb.append("        return null;\n");
+        } else {
+            sb.append("        final IntSeqBuilder out = new IntSeqBuilder(length + 16);\n");
+            sb.append("        int state = ").append(g.initial).append(";\n");
+            sb.append("        for (int i = offset, end = offset + length; i < end; i++) {\n");
+            sb.append("            final int c = input[i];\n");
+            sb.append("            switch (state) {\n");
+            for (int state = 0; state < g.size(); state++) {
+                sb.append("                case ").append(state).append(":\n");
+                appendRanges(g, sb, constants, constantNames, g.rangeOffset[state], g.rangeOffset[state + 1],
+                        "                    ");
+            }
+            sb.append("                default:\n");
+            sb.append("                    return null;\n");
+            sb.append("            }\n");
+            sb.append("        }\n");
+            sb.append("        switch (state) {\n");
+            for (int state = 0; state < g.size(); state++) {
+                if (g.finalOutBegin[state] == -1) continue;
+                sb.append("            case ").append(state).append(":\n");
+                for (int k = g.finalOutBegin[state]; k < g.finalOutEnd[state]; k++) {
+                    if (g.outputPool[k] != g.minimal) {
+                        sb.append("                out.append(").append(g.outputPool[k]).append(");\n");
+                    }
+                }
+                sb.append("                return out.toIntSeq();\n");
+            }
+            sb.append("            default:\n");
+            sb.append("                return null;\n");
+            sb.append("        }\n");
+        }
+        sb.append("    }\n");
+        return "package " + PACKAGE + ";\n\n" +
+                "import net.alagris.IntSeq;\n" +
+                "import net.alagris.IntSeqBuilder;\n" +
+                "import net.alagris.SpecializedTransducer;\n\n" +
+                "public final class " + simpleName + " extends SpecializedTransducer {\n" +
+                constants + "\n" + sb + "}\n";
+    }
+
+    /**
+     * Emits comparisons that find the range (among ranges from <tt>fromInclusive</tt> to
+     * <tt>toExclusive</tt>) containing symbol <tt>c</tt> and take its transition. Every emitted branch ends
+     * with <tt>continue</tt> or <tt>return</tt>.
+     */
+    private static void appendRanges(CompiledGraph g, StringBuilder sb, StringBuilder constants,
+                                     HashMap<IntSeq, String> constantNames, int fromInclusive, int toExclusive,
+                                     String indent) {
+        if (toExclusive - fromInclusive > LINEAR_COMPARISONS) {
+            final int mid = (fromInclusive + toExclusive) >>> 1;
+            sb.append(indent).append("if (c <= ").append(g.rangeInput[mid - 1]).append(") {\n");
+            appendRanges(g, sb, constants, constantNames, fromInclusive, mid, indent + "    ");
+            sb.append(indent).append("} else {\n");
+            appendRanges(g, sb, constants, constantNames, mid, toExclusive, indent + "    ");
+            sb.append(indent).append("}\n");
+            return;
+        }
+        for (int r = fromInclusive; r < toExclusive; r++) {
+            sb.append(indent).append("if (c <= ").append(g.rangeInput[r]).append(") {\n");
+            final String inner = indent + "    ";
+            if (g.transOffset[r] == g.transOffset[r + 1]) {
+                sb.append(inner).append("return null;\n");
+            } else {
+                final int t = g.transOffset[r];
+                appendOutput(g, sb, constants, constantNames, t, inner);
+                sb.append(inner).append("state = ").append(g.transTarget[t]).append(";\n");
+                sb.append(inner).append("continue;\n");
+            }
+            sb.append(indent).append("}\n");
+        }
+        sb.append(indent).append("return null;\n");
+    }
+
+    private static void appendOutput(CompiledGraph g, StringBuilder sb, StringBuilder constants,
+                                     HashMap<IntSeq, String> constantNames, int t, String indent) {
+        final int begin = g.transOutBegin[t];
+        final int end = g.transOutEnd[t];
+        boolean reflects = false;
+        for (int k = begin; k < end; k++) {
+            if (g.outputPool[k] == g.minimal) reflects = true;
+        }
+        if (!reflects && end - begin > INLINED_OUTPUT) {
+            final IntSeq output = new IntSeq(g.outputPool, begin, end - begin);
+            String name = constantNames.get(output);
+            if (name == null) {
+                name = "OUT" + constantNames.size();
+                constantNames.put(output, name);
+                constants.append("    private static final int[] ").append(name).append(" = {");
+                for (int k = begin; k < end; k++) {
+                    if (k > begin) constants.append(", ");
+                    constants.append(g.outputPool[k]);
+                }
+                constants.append("};\n");
+            }
+            sb.append(indent).append("out.append(").append(name).append(", 0, ").append(end - begin).append(");\n");
+        } else {
+            for (int k = begin; k < end; k++) {
+                final int symbol = g.outputPool[k];
+                sb.append(indent).append("out.append(").append(symbol == g.minimal ? "c" : String.valueOf(symbol))
+                        .append(");\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package net.alagris;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Evaluates {@link CompiledGraph} over input of unbounded length and emits output while the input is still being
+ * read. Symbols are pushed one by one with {@link #feed(int)}. Whenever all live computation branches share
+ * a common history (in particular when the superposition collapses to a single state), the output of that
+ * history is flushed to the sink and its backtracking records are freed. Deterministic graphs flush their output
+ * after every symbol. As a result memory usage stays bounded by the amount of ambiguity rather than the
+ * length of input.
+ * <p>
+ * Output that has already been flushed cannot be retracted. If the input turns out to be rejected, the sink
+ * will have received a prefix of output nonetheless and {@link #finish()} returns false. The final output of
+ * accepting state is emitted only by {@link #finish()}.
+ * <p>
+ * StreamingEvaluator is not thread-safe.
+ */
+public final class StreamingEvaluator {
+
+    private static final int INITIAL_COMPACT_THRESHOLD = 1024;
+    static final int BUFFER_SIZE = 8192;
+
+    private final Evaluator ev;
+    private IntConsumer sink;
+    /**
+     * Backtracking arena is compacted once it holds this many records. The threshold grows if compaction
+     * does not free enough space.
+     */
+    private int compactThreshold = INITIAL_COMPACT_THRESHOLD;
+    private int[] lca = new int[0];
+    private int[] remap = new int[0];
+
+    public StreamingEvaluator(CompiledGraph graph) {
+        this.ev = graph.makeEvaluator();
+    }
+
+    public CompiledGraph getGraph() {
+        return ev.graph;
+    }
+
+    /**
+     * Starts new evaluation. All output will be passed to the given sink.
+     */
+    public void begin(IntConsumer sink) {
+        this.sink = sink;
+        ev.begin();
+        compactThreshold = INITIAL_COMPACT_THRESHOLD;
+    }
+
+    /**
+     * Reads one input symbol and flushes as much output as possible.
+     *
+     * @return false if the input is already rejected and there is no point in feeding any more symbols
+     */
+    public boolean feed(int symbol) {
+        final boolean alive = ev.feed(symbol);
+        if (ev.graph.deterministic) {
+            flushDeterministic();
+        } else if (alive) {
+            if (ev.thisSize == 1) {
+                flushCollapsed();
+            } else if (ev.records >= compactThreshold) {
+                compact();
+            }
+        }
+        return alive;
+    }
+
+    /**
+     * Emits the final output (if the input is accepted) and ends evaluation.
+     *
+     * @return true if the input is accepted
+     */
+    public boolean finish() {
+        final boolean accepted;
+        if (ev.graph.deterministic) {
+            accepted = ev.graph.isAccepting(ev.detState);
+            if (accepted) {
+                ev.appendFinalOutput(ev.output, ev.detState);
+                flushDeterministic();
+            }
+        } else {
+            final int best = ev.bestAccepting();
+            accepted = best != -1;
+            if (accepted) {
+                emitChain(ev.thisRecords[best], -1);
+                ev.output.clear();
+                ev.appendFinalOutput(ev.output, ev.thisStates[best]);
+                flushDeterministic();
+            }
+        }
+        sink = null;
+        ev.releaseArena();
+        return accepted;
+    }
+
+    private void flushDeterministic() {
+        final IntSeqBuilder out = ev.output;
+        for (int i = 0; i < out.size(); i++) {
+            sink.accept(out.at(i));
+        }
+        out.clear();
+    }
+
+    /**
+     * Only one computation branch is alive, so its entire history is certain and can be emitted.
+     */
+    private void flushCollapsed() {
+        emitChain(ev.thisRecords[0], -1);
+        ev.thisRecords[0] = -1;
+        ev.records = 0;
+    }
+
+    /**
+     * Emits outputs of records starting from (but excluding) <tt>stop</tt> up to the given record. Records
+     * are linked backwards, so the outputs are first gathered in reverse order.
+     */
+    private void emitChain(int record, int stop) {
+        final CompiledGraph g = ev.graph;
+        final int[] pool = g.outputPool;
+        final IntSeqBuilder reversed = ev.output;
+        reversed.clear();
+        for (int rec = record; rec != stop; rec = ev.recPrev[rec]) {
+            final int t = ev.recTrans[rec];
+            for (int k = g.transOutEnd[t] - 1; k >= g.transOutBegin[t]; k--) {
+                final int symbol = pool[k];
+                reversed.append(symbol == g.minimal ? ev.recIn[rec] : symbol);
+            }
+        }
+        for (int i = reversed.size() - 1; i >= 0; i--) {
+            sink.accept(reversed.at(i));
+        }
+        reversed.clear();
+    }
+
+    /**
+     * Emits the history shared by all live branches (everything up to their lowest common ancestor) and
+     * discards all records that are no longer reachable. All live records are at the same depth, so the
+     * common ancestor is found by walking all branches backwards in lockstep.
+     */
+    private void compact() {
+        final int live = ev.thisSize;
+        if (lca.length < live) lca = new int[ev.thisRecords.length];
+        System.arraycopy(ev.thisRecords, 0, lca, 0, live);
+        while (!allEqual(lca, live)) {
+            for (int j = 0; j < live; j++) {
+                lca[j] = ev.recPrev[lca[j]];
+            }
+        }
+        final int ancestor = lca[0];
+        if (ancestor != -1) emitChain(ancestor, -1);
+        // Records are always created after their predecessors, so compaction in order of indices
+        // can be done in place. Reachable records are first marked with 1 and then remapped to their new index.
+        final int records = ev.records;
+        if (remap.length < records) remap = new int[records];
+        Arrays.fill(remap, 0, records, 0);
+        for (int j = 0; j < live; j++) {
+            for (int rec = ev.thisRecords[j]; rec != ancestor && remap[rec] == 0; rec = ev.recPrev[rec]) {
+                remap[rec] = 1;
+            }
+        }
+        int size = 0;
+        for (int rec = 0; rec < records; rec++) {
+            if (remap[rec] == 0) {
+                remap[rec] = -1;
+            } else {
+                final int prev = ev.recPrev[rec];
+                ev.recPrev[size] = prev == ancestor ? -1 : remap[prev];
+                ev.recTrans[size] = ev.recTrans[rec];
+                ev.recIn[size] = ev.recIn[rec];
+                remap[rec] = size++;
+            }
+        }
+        for (int j = 0; j < live; j++) {
+            ev.thisRecords[j] = remap[ev.thisRecords[j]];
+        }
+        ev.records = size;
+        if (size > compactThreshold / 2) {
+            compactThreshold *= 2;
+        }
+    }
+
+    private static boolean allEqual(int[] arr, int size) {
+        for (int j = 1; j < size; j++) {
+            if (arr[j] != arr[0]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Evaluates entire input, decoding code points on the fly. Output code points are encoded back into
+     * characters. The writer is flushed but not closed.
+     *
+     * @return true if the input is accepted
+     */
+    public boolean evaluate(Reader in, Writer out) throws IOException {
+        begin(writerSink(out));
+        try {
+            feedAll(in, this::feed);
+            final boolean accepted = finish();
+            out.flush();
+            return accepted;
+        } catch (UncheckedIOException e) {
+            sink = null;
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Sink that encodes code points into characters. Exceptions are wrapped in {@link UncheckedIOException}.
+     */
+    static IntConsumer writerSink(Writer out) {
+        return codepoint -> {
+            try {
+                if (Character.isBmpCodePoint(codepoint)) {
+                    out.write(codepoint);
+                } else {
+                    out.write(Character.highSurrogate(codepoint));
+                    out.write(Character.lowSurrogate(codepoint));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    /**
+     * Decodes code points and feeds them one by one until the reader is exhausted or feeding returns false.
+     * Unpaired surrogates are fed as they are.
+     *
+     * @return the last value returned by feed (true if nothing was fed)
+     */
+    static boolean feedAll(Reader in, IntPredicate feed) throws IOException {
+        final char[] buffer = new char[BUFFER_SIZE];
+        char pendingHigh = 0;
+        boolean alive = true;
+        int read;
+        while (alive && (read = in.read(buffer)) != -1) {
+            for (int i = 0; i < read && alive; i++) {
+                final char c = buffer[i];
+                if (pendingHigh != 0) {
+                    final char high = pendingHigh;
+                    pendingHigh = 0;
+                    if (Character.isLowSurrogate(c)) {
+                        alive = feed.test(Character.toCodePoint(high, c));
+                        continue;
+                    }
+                    alive = feed.test(high);
+                    if (!alive) break;
+                }
+                if (Character.isHighSurrogate(c)) {
+                    pendingHigh = c;
+                } else {
+                    alive = feed.test(c);
+                }
+            }
+        }
+        if (alive && pendingHigh != 0) {
+            alive = feed.test(pendingHigh);
+        }
+        return alive;
+    }
+
+    /**
+     * Same as {@link #evaluate(Reader, Writer)} but input and output are encoded in UTF-8.
+     */
+    public boolean evaluate(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        final Writer writer = Channels.newWriter(out, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE);
+        return evaluate(Channels.newReader(in, StandardCharsets.UTF_8.newDecoder(), BUFFER_SIZE), writer);
+    }
+}
@@ -0,0 +1,209 @@
+package net.alagris;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * Evaluates a chain of stages (as in {@link LexUnicodeSpecification.LexPipeline}) without materialising
+ * intermediate outputs. Every automaton stage is a {@link StreamingEvaluator} whose sink feeds the next stage,
+ * so output symbols of one stage enter the superposition of the next one as soon as they become certain. Memory
+ * used by consecutive automaton stages is bounded by their amount of ambiguity rather than the length of input.
+ * <p>
+ * External functions need their entire input, hence they buffer everything they receive and pass their output
+ * further only once the preceding stages finish. They are not called at all if the input gets rejected earlier.
+ * <p>
+ * Just like with {@link StreamingEvaluator}, output that has already been flushed cannot be retracted, so
+ * the sink might receive a prefix of output of rejected input. StreamingPipeline is not thread-safe.
+ */
+public final class StreamingPipeline {
+
+    private interface Stage {
+        void begin(IntConsumer sink);
+
+        boolean feed(int symbol);
+
+        boolean finish();
+    }
+
+    private static final class AutomatonStage implements Stage {
+        final StreamingEvaluator ev;
+
+        AutomatonStage(CompiledGraph graph) {
+            this.ev = new StreamingEvaluator(graph);
+        }
+
+        @Override
+        public void begin(IntConsumer sink) {
+            ev.begin(sink);
+        }
+
+        @Override
+        public boolean feed(int symbol) {
+            return ev.feed(symbol);
+        }
+
+        @Override
+        public boolean finish() {
+            return ev.finish();
+        }
+    }
+
+    private final class FunctionStage implements Stage {
+        final Function<IntSeq, IntSeq> f;
+        final IntSeqBuilder buffer = new IntSeqBuilder();
+        IntConsumer sink;
+
+        FunctionStage(Function<IntSeq, IntSeq> f) {
+            this.f = f;
+        }
+
+        @Override
+        public void begin(IntConsumer sink) {
+            this.sink = sink;
+            buffer.clear();
+        }
+
+        @Override
+        public boolean feed(int symbol) {
+            buffer.append(symbol);
+            return true;
+        }
+
+        @Override
+        public boolean finish() {
+            final IntSeq out = rejected ? null : f.apply(buffer.toIntSeq());
+            buffer.clear();
+            if (out != null) {
+                for (int i = 0; i < out.size(); i++) {
+                    sink.accept(out.at(i));
+                }
+            }
+            sink = null;
+            return out != null;
+        }
+    }
+
+    private final ArrayList<Stage> stages = new ArrayList<>();
+    private IntConsumer sink;
+    private boolean rejected;
+
+    public StreamingPipeline append(CompiledGraph graph) {
+        stages.add(new AutomatonStage(graph));
+        return this;
+    }
+
+    public StreamingPipeline append(Function<IntSeq, IntSeq> f) {
+        stages.add(new FunctionStage(f));
+        return this;
+    }
+
+    /**
+     * Number of stages
+     */
+    public int size() {
+        return stages.size();
+    }
+
+    /**
+     * Starts new evaluation. All output of the last stage will be passed to the given sink.
+     */
+    public void begin(IntConsumer sink) {
+        this.sink = sink;
+        rejected = false;
+        for (int i = 0; i < stages.size(); i++) {
+            final Stage next = i + 1 < stages.size() ? stages.get(i + 1) : null;
+            stages.get(i).begin(symbol -> {
+                if (rejected) return;
+                if (next == null) {
+                    this.sink.accept(symbol);
+                } else if (!next.feed(symbol)) {
+                    rejected = true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Passes one input symbol through all stages that can already process it.
+     *
+     * @return false if the input is already rejected and there is no point in feeding any more symbols
+     */
+    public boolean feed(int symbol) {
+        if (rejected) return false;
+        if (stages.isEmpty()) {
+            sink.accept(symbol);
+        } else if (!stages.get(0).feed(symbol)) {
+            rejected = true;
+        }
+        return !rejected;
+    }
+
+    /**
+     * Finishes stages one after another, so that final outputs of each stage reach the next one before it
+     * finishes. All stages are finished even if the input is rejected, but then nothing more is passed
+     * to the sink.
+     *
+     * @return true if the input is accepted
+     */
+    public boolean finish() {
+        for (Stage stage : stages) {
+            if (!stage.finish()) rejected = true;
+        }
+        sink = null;
+        return !rejected;
+    }
+
+    /**
+     * @return output or null if the input is rejected
+     */
+    public IntSeq evaluate(IntSeq input) {
+        final IntSeqBuilder out = new IntSeqBuilder();
+        begin(out::append);
+        for (int i = 0; i < input.size() && feed(input.at(i)); i++) ;
+        return finish() ? out.toIntSeq() : null;
+    }
+
+    public String evaluate(String input) {
+        final IntSeq out = evaluate(new IntSeq(input));
+        return out == null ? null : out.toUnicodeString();
+    }
+
+    /**
+     * Evaluates entire input, decoding code points on the fly. Output code points are encoded back into
+     * characters. The writer is flushed but not closed.
+     *
+     * @return true if the input is accepted
+     */
+    public boolean evaluate(Reader in, Writer out) throws IOException {
+        begin(StreamingEvaluator.writerSink(out));
+        try {
+            StreamingEvaluator.feedAll(in, this::feed);
+            final boolean accepted = finish();
+            out.flush();
+            return accepted;
+        } catch (UncheckedIOException e) {
+            rejected = true;
+            finish();
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Same as {@link #evaluate(Reader, Writer)} but input and output are encoded in UTF-8.
+     */
+    public boolean evaluate(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        final Writer writer = Channels.newWriter(out, StandardCharsets.UTF_8.newEncoder(),
+                StreamingEvaluator.BUFFER_SIZE);
+        return evaluate(Channels.newReader(in, StandardCharsets.UTF_8.newDecoder(),
+                StreamingEvaluator.BUFFER_SIZE), writer);
+    }
+}
@@ -0,0 +1,146 @@
+package net.alagris;
+
+/**
+ * Splits text into tokens, like a lexer would. Starting at the beginning of text, the tokenizer finds the longest
+ * non-empty prefix accepted by the graph, reports it together with its output and then restarts right after
+ * it. Among all computation branches accepting the same prefix, the usual weights of transitions and final
+ * states decide which output is reported. If no prefix is accepted, a single symbol is reported as unmatched
+ * and skipped.
+ * <p>
+ * Each token is found in a single pass that remembers the last accepting position, so text is never
+ * re-evaluated from scratch for every candidate substring. Scanning of a token stops as soon as all
+ * computation branches die.
+ * <p>
+ * Tokenizer is not thread-safe.
+ */
+public final class Tokenizer {
+
+    public interface TokenListener {
+        /**
+         * Called for every token. Positions are indices in the tokenized text.
+         */
+        void token(int fromInclusive, int toExclusive, IntSeq output);
+
+        /**
+         * Called for every symbol that does not start any token.
+         */
+        default void unmatched(int position, int symbol) {
+        }
+    }
+
+    private final Evaluator ev;
+    /*Last accepted position of the token being scanned (or -1) and the state in which it was accepted*/
+    private int matchEnd;
+    private int matchState;
+    /*Record of accepting branch. Used only with nondeterministic graphs*/
+    private int matchRecord;
+    /*Size of output buffer at the time of acceptance. Used only with deterministic graphs*/
+    private int matchOutputSize;
+
+    public Tokenizer(CompiledGraph graph) {
+        this.ev = graph.makeEvaluator();
+    }
+
+    public CompiledGraph getGraph() {
+        return ev.graph;
+    }
+
+    private void begin() {
+        ev.begin();
+        matchEnd = -1;
+    }
+
+    /**
+     * Remembers current position if any of the live states is accepting.
+     */
+    private void tryAccept(int end) {
+        if (ev.graph.deterministic) {
+            if (ev.graph.isAccepting(ev.detState)) {
+                matchEnd = end;
+                matchState = ev.detState;
+                matchOutputSize = ev.output.size();
+            }
+        } else {
+            final int best = ev.bestAccepting();
+            if (best != -1) {
+                matchEnd = end;
+                matchState = ev.thisStates[best];
+                matchRecord = ev.thisRecords[best];
+            }
+        }
+    }
+
+    /**
+     * Backtracking records of accepted branch stay untouched until the next token begins, because
+     * superposition only ever modifies records created in the current step.
+     */
+    private IntSeq matchOutput() {
+        if (ev.graph.deterministic) {
+            ev.output.truncate(matchOutputSize);
+            ev.appendFinalOutput(ev.output, matchState);
+            return ev.output.toIntSeq();
+        } else {
+            return ev.collect(matchRecord, matchState);
+        }
+    }
+
+    public void tokenize(int[] text, int offset, int length, TokenListener listener) {
+        final int end = offset + length;
+        int pos = offset;
+        while (pos < end) {
+            begin();
+            for (int i = pos; i < end && ev.feed(text[i]); ) {
+                tryAccept(++i);
+            }
+            if (matchEnd == -1) {
+                listener.unmatched(pos, text[pos]);
+                pos++;
+            } else {
+                listener.token(pos, matchEnd, matchOutput());
+                pos = matchEnd;
+            }
+        }
+        ev.releaseArena();
+    }
+
+    public void tokenize(IntSeq text, TokenListener listener) {
+        final int offset = text.offset();
+        tokenize(text.unsafe(), offset, text.size(), new TokenListener() {
+            @Override
+            public void token(int fromInclusive, int toExclusive, IntSeq output) {
+                listener.token(fromInclusive - offset, toExclusive - offset, output);
+            }
+
+            @Override
+            public void unmatched(int position, int symbol) {
+                listener.unmatched(position - offset, symbol);
+            }
+        });
+    }
+
+    /**
+     * Code points are decoded on the fly. Positions passed to listener are indices of chars (not code points).
+     */
+    public void tokenize(CharSequence text, TokenListener listener) {
+        final int end = text.length();
+        int pos = 0;
+        while (pos < end) {
+            begin();
+            for (int i = pos; i < end; ) {
+                final int codepoint = Character.codePointAt(text, i);
+                if (!ev.feed(codepoint)) break;
+                i += Character.charCount(codepoint);
+                tryAccept(i);
+            }
+            if (matchEnd == -1) {
+                final int codepoint = Character.codePointAt(text, pos);
+                listener.unmatched(pos, codepoint);
+                pos += Character.charCount(codepoint);
+            } else {
+                listener.token(pos, matchEnd, matchOutput());
+                pos = matchEnd;
+            }
+        }
+        ev.releaseArena();
+    }
+}
@@ -0,0 +1,230 @@
+package net.alagris;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Rewrites code-point level {@link CompiledGraph} into an equivalent graph that reads UTF-8 bytes. Every state
+ * of the original graph keeps its index and becomes the root of a byte trie, which spells the UTF-8 encodings
+ * of all code points accepted by its ranges. Intermediate nodes of the trie become new states. Only the edge
+ * reading the last byte of a code point carries the original transitions (with their targets, weights and
+ * outputs). All other edges have no output and zero weight.
+ * <p>
+ * Ranges of code points are split into byte ranges recursively. Every block of code points sharing
+ * the same leading bytes, that lies entirely within a single range, is represented by a "constant" node that
+ * accepts any continuation bytes. Identical nodes are hash-consed, so the number of new states is
+ * proportional to the number of range boundaries rather than the number of code points. Only well-formed UTF-8
+ * is accepted: overlong encodings, surrogates and code points above {@link Character#MAX_CODE_POINT} lead to
+ * rejection.
+ */
+final class Utf8Compiler {
+    /**
+     * Target of byte range without any transitions
+     */
+    private static final int DEAD = Integer.MIN_VALUE;
+    private static final int CONTINUATION_BITS = 6;
+
+    private final CompiledGraph g;
+    /**
+     * Edges of every node are stored as pairs (inclusive upper bound of byte range, target). Target that is
+     * non-negative is the index of another node. Negative target <tt>-r-1</tt> stands for transitions of
+     * range <tt>r</tt> in the original graph.
+     */
+    private final ArrayList<int[]> nodes = new ArrayList<>();
+    private final HashMap<IntSeq, Integer> uniqueNodes = new HashMap<>();
+    private final HashMap<Long, Integer> constNodes = new HashMap<>();
+    private final IntSeqBuilder edges = new IntSeqBuilder();
+
+    private Utf8Compiler(CompiledGraph g) {
+        this.g = g;
+    }
+
+    static CompiledGraph compile(CompiledGraph g) {
+        return new Utf8Compiler(g).build();
+    }
+
+    private CompiledGraph build() {
+        final int size = g.size();
+        final int[][] roots = new int[size][];
+        for (int state = 0; state < size; state++) {
+            roots[state] = root(state);
+        }
+        final int states = size + nodes.size();
+        int rangeCount = 0;
+        int transCount = 0;
+        for (int state = 0; state < states; state++) {
+            final int[] e = state < size ? roots[state] : nodes.get(state - size);
+            rangeCount += e.length / 2;
+            for (int i = 1; i < e.length; i += 2) {
+                final int target = e[i];
+                if (target >= 0) {
+                    transCount++;
+                } else if (target != DEAD) {
+                    transCount += g.transOffset[-target] - g.transOffset[-target - 1];
+                }
+            }
+        }
+        final int[] rangeOffset = new int[states + 1];
+        final int[] rangeInput = new int[rangeCount];
+        final int[] transOffset = new int[rangeCount + 1];
+        final int[] transTarget = new int[transCount];
+        final int[] transWeight = new int[transCount];
+        final int[] transOutBegin = new int[transCount];
+        final int[] transOutEnd = new int[transCount];
+        final int[] finalOutBegin = new int[states];
+        final int[] finalOutEnd = new int[states];
+        final int[] finalWeight = new int[states];
+        int r = 0;
+        int t = 0;
+        for (int state = 0; state < states; state++) {
+            rangeOffset[state] = r;
+            final int[] e = state < size ? roots[state] : nodes.get(state - size);
+            for (int i = 0; i < e.length; i += 2) {
+                rangeInput[r] = e[i];
+                transOffset[r] = t;
+                final int target = e[i + 1];
+                if (target >= 0) {
+                    transTarget[t] = size + target;
+                    t++;
+                } else if (target != DEAD) {
+                    for (int orig = g.transOffset[-target - 1]; orig < g.transOffset[-target]; orig++) {
+                        transTarget[t] = g.transTarget[orig];
+                        transWeight[t] = g.transWeight[orig];
+                        transOutBegin[t] = g.transOutBegin[orig];
+                        transOutEnd[t] = g.transOutEnd[orig];
+                        t++;
+                    }
+                }
+                r++;
+            }
+            if (state < size) {
+                finalOutBegin[state] = g.finalOutBegin[state];
+                finalOutEnd[state] = g.finalOutEnd[state];
+                finalWeight[state] = g.finalWeight[state];
+            } else {
+                finalOutBegin[state] = -1;
+                finalOutEnd[state] = -1;
+            }
+        }
+        rangeOffset[states] = r;
+        transOffset[rangeCount] = t;
+        assert r == rangeCount;
+        assert t == transCount;
+        return new CompiledGraph(g.minimal, g.initial, g.deterministic, true, rangeOffset, rangeInput, transOffset,
+                transTarget, transWeight, transOutBegin, transOutEnd, finalOutBegin, finalOutEnd, finalWeight,
+                g.outputPool, 0, null, null, null);
+    }
+
+    /**
+     * Edges leaving original state. Single bytes lead directly to the original transitions, while leading
+     * bytes of longer sequences lead to intermediate nodes.
+     */
+    private int[] root(int state) {
+        final int[] children = new int[0xF5 - 0xC2];
+        for (int b = 0xC2; b < 0xE0; b++) {
+            children[b - 0xC2] = node(state, (b & 0x1F) << 6, 1, 0x80);
+        }
+        for (int b = 0xE0; b < 0xF0; b++) {
+            children[b - 0xC2] = node(state, (b & 0x0F) << 12, 2, 0x800);
+        }
+        for (int b = 0xF0; b < 0xF5; b++) {
+            children[b - 0xC2] = node(state, (b & 0x07) << 18, 3, 0x10000);
+        }
+        // Recursive calls reuse the edge buffer, so edges are appended only after all children are built
+        edges.clear();
+        for (int codepoint = 0; codepoint < 0x80; codepoint++) {
+            append(codepoint, last(state, codepoint));
+        }
+        append(0xC1, DEAD);
+        for (int b = 0xC2; b < 0xF5; b++) {
+            append(b, children[b - 0xC2]);
+        }
+        return toArray();
+    }
+
+    /**
+     * Node reached after reading leading bytes of a code point.
+     *
+     * @param base      the first code point of block that starts with the bytes read so far
+     * @param remaining number of continuation bytes that remain to be read
+     * @param minimal   the lowest code point whose encoding has this length (anything below is overlong)
+     */
+    private int node(int state, int base, int remaining, int minimal) {
+        final int blockSize = 1 << (CONTINUATION_BITS * remaining);
+        final int last = base + blockSize - 1;
+        if (last < minimal || base > Character.MAX_CODE_POINT
+                || (base >= Character.MIN_SURROGATE && last <= Character.MAX_SURROGATE)) {
+            return DEAD;
+        }
+        if (base >= minimal && last <= Character.MAX_CODE_POINT
+                && (last < Character.MIN_SURROGATE || base > Character.MAX_SURROGATE)) {
+            final int range = g.rangeIndex(state, base);
+            if (range == -1) return DEAD;
+            if (g.rangeInput[range] >= last) return constNode(range, remaining);
+        }
+        final int subBlockSize = blockSize >>> CONTINUATION_BITS;
+        final int[] children = new int[1 << CONTINUATION_BITS];
+        for (int c = 0; c < children.length; c++) {
+            final int subBase = base + c * subBlockSize;
+            children[c] = remaining == 1 ? (subBase < minimal ? DEAD : last(state, subBase))
+                    : node(state, subBase, remaining - 1, minimal);
+        }
+        edges.clear();
+        append(0x7F, DEAD);
+        for (int c = 0; c < children.length; c++) {
+            append(0x80 + c, children[c]);
+        }
+        return intern(toArray());
+    }
+
+    /**
+     * Node that accepts any continuation bytes and then takes transitions of the given range
+     */
+    private int constNode(int range, int remaining) {
+        if (g.transOffset[range] == g.transOffset[range + 1]) return DEAD;
+        final long key = ((long) range << 3) | remaining;
+        final Integer prev = constNodes.get(key);
+        if (prev != null) return prev;
+        final int child = remaining == 1 ? -range - 1 : constNode(range, remaining - 1);
+        final int node = intern(new int[]{0x7F, DEAD, 0xBF, child});
+        constNodes.put(key, node);
+        return node;
+    }
+
+    /**
+     * Target of the edge that reads the last byte of given code point
+     */
+    private int last(int state, int codepoint) {
+        if ((Character.MIN_SURROGATE <= codepoint && codepoint <= Character.MAX_SURROGATE)
+                || codepoint > Character.MAX_CODE_POINT) return DEAD;
+        final int range = g.rangeIndex(state, codepoint);
+        if (range == -1 || g.transOffset[range] == g.transOffset[range + 1]) return DEAD;
+        return -range - 1;
+    }
+
+    /**
+     * Appends byte range ending at given byte. Adjacent ranges with the same target are merged.
+     */
+    private void append(int byteInclusive, int target) {
+        final int size = edges.size();
+        if (size > 0 && edges.at(size - 1) == target) {
+            edges.truncate(size - 2);
+        }
+        edges.append(byteInclusive).append(target);
+    }
+
+    private int[] toArray() {
+        final int[] arr = new int[edges.size()];
+        for (int i = 0; i < arr.length; i++) arr[i] = edges.at(i);
+        return arr;
+    }
+
+    private int intern(int[] nodeEdges) {
+        final IntSeq key = new IntSeq(nodeEdges);
+        final Integer prev = uniqueNodes.get(key);
+        if (prev != null) return prev;
+        nodes.add(nodeEdges);
+        uniqueNodes.put(key, nodes.size() - 1);
+        return nodes.size() - 1;
+    }
+}
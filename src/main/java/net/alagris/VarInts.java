@@ -0,0 +1,43 @@
+package net.alagris;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * LEB128 variable-length encoding of ints. Small non-negative values take a single byte. Signed values
+ * (such as deltas) should be zigzag encoded first, so that small negative values are short as well.
+ */
+final class VarInts {
+    private VarInts() {
+    }
+
+    static void write(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int read(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final int b = in.read();
+            if (b < 0) throw new EOFException();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static void writeSigned(OutputStream out, int value) throws IOException {
+        write(out, (value << 1) ^ (value >> 31));
+    }
+
+    static int readSigned(InputStream in) throws IOException {
+        final int zigzag = read(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
@@ -8,11 +8,34 @@ import net.alagris.LexUnicodeSpecification.P;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
 
 public class MealyTest {
 
@@ -864,9 +887,8 @@ public class MealyTest {
         }
     }
 
-    @Test
-    void testPipelines() throws Exception {
-        PipelineTestCase[] cases = {
+    static PipelineTestCase[] pipelineCases() {
+        return new PipelineTestCase[]{
                 p("@f = 'a':'b';", ps("a;b"), ""),
                 p("@f = 'a':'b'; 'b' : 'c' ;", ps("a;c"), "", "b", "c", "d", "aa"),
                 p("@f = 'a':'b'; 'b' : 'c' ; 'c' : 'd' ;", ps("a;d"), "", "b", "c", "d", "aa"),
@@ -876,8 +898,57 @@ public class MealyTest {
                 p("@g = 'a':'b' {'b'} 'b' : 'c' {'c'}" +
                         "@f = @g ; 'c' : 'd' {'d'} ", ps("a;d"), "", "b", "c", "d", "aa"),
         };
+    }
+
+    /**
+     * Fails on syntax errors, which the parser would otherwise only report and recover from
+     */
+    static String checkSyntax(String code) {
+        final BaseErrorListener failing = new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                                    int charPositionInLine, String msg, RecognitionException e) {
+                fail(code + "\nline " + line + ":" + charPositionInLine + " " + msg);
+            }
+        };
+        final GrammarLexer lexer = new GrammarLexer(CharStreams.fromString(code));
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(failing);
+        final GrammarParser parser = new GrammarParser(new CommonTokenStream(lexer));
+        parser.removeErrorListeners();
+        parser.addErrorListener(failing);
+        parser.start();
+        return code;
+    }
+
+    /**
+     * Parses the code with pipeline fusion enabled
+     */
+    static CLI.OptimisedHashLexTransducer fusing(String code) throws CompilationError {
+        final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer(true, 0, Integer.MAX_VALUE, CLI.makeEmptyExternalPipelineFunction());
+        tr.specs.setPipelineFusionBudget(1000);
+        tr.parse(CharStreams.fromString(checkSyntax(code)));
+        return tr;
+    }
+
+    /**
+     * Pipelines of two automata followed by a third one, for every pair of the stages
+     */
+    static List<String> stagePairs() {
+        final String[] stages = {"('a':'b' | 'b':'a' | 'c')*", "('a' 'b'*):'q' | [a-c]* 'c':'x' 2", "('ab':'X' 2 | [a-c])*",
+                "('a':'a' | 'b':'bb' | 'c':'ab')*", "'':'c' [a-c]* | 'a' 'a'* 'b' 3", "'a':'bc' ([a-c]:<0> 'a')* 'b':'c'"};
+        final ArrayList<String> codes = new ArrayList<>();
+        for (String lhs : stages) {
+            for (String rhs : stages) {
+                codes.add(checkSyntax("g = " + lhs + "\n@f = " + lhs + " ; " + rhs + " ; ('c':'a' 2 | [a-z])* ;"));
+            }
+        }
+        return codes;
+    }
 
-        for (PipelineTestCase caze : cases) {
+    @Test
+    void testPipelines() throws Exception {
+        for (PipelineTestCase caze : pipelineCases()) {
             CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer(caze.code, 0, Integer.MAX_VALUE, true);
             LexUnicodeSpecification.LexPipeline<HashMapIntermediateGraph.N<Pos, LexUnicodeSpecification.E>, HashMapIntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P>> g = tr.getPipeline("f");
             for (Positive pos : caze.ps) {
@@ -890,4 +961,758 @@ public class MealyTest {
 
         }
     }
+
+    @Test
+    void testPipelineFusion() throws Exception {
+        for (PipelineTestCase caze : pipelineCases()) {
+            final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer(caze.code, 0, Integer.MAX_VALUE, true);
+            final LexUnicodeSpecification.LexPipeline<?, ?> fused = fusing(caze.code).getPipeline("f");
+            assertTrue(fused.size() <= tr.getPipeline("f").size());
+            for (Positive pos : caze.ps) {
+                assertEquals(pos.output, fused.evaluate(pos.input));
+            }
+            for (String neg : caze.negative) {
+                assertNull(fused.evaluate(neg));
+            }
+        }
+        final Random rnd = new Random(13);
+        int fusedCount = 0;
+        for (String code : stagePairs()) {
+            final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer(code, 0, Integer.MAX_VALUE, true);
+            final CLI.OptimisedHashLexTransducer fusedTr = fusing(code);
+            if (fusedTr.getPipeline("f").size() < tr.getPipeline("f").size()) fusedCount++;
+            for (int i = 0; i < 200; i++) {
+                final IntSeq in = IntSeq.rand(0, 8, 'a', 'c', rnd);
+                assertEquals(code + "\ninput=" + in, tr.getPipeline("f").evaluate(in), fusedTr.getPipeline("f").evaluate(in));
+            }
+        }
+        assertTrue(fusedCount > 0);
+        final CLI.OptimisedHashLexTransducer fusedTr = fusing("@f = 'a':'b' {'b'} 'b' : 'c' {'c'} 'c' : 'd' ;");
+        assertEquals(1, fusedTr.getPipeline("f").size());
+        assertEquals("d", fusedTr.getPipeline("f").evaluate("a"));
+    }
+
+    @Test
+    void testPipelineStreaming() throws Exception {
+        final Random rnd = new Random(13);
+        for (String code : stagePairs()) {
+            final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer(code, 0, Integer.MAX_VALUE, true);
+            final StreamingPipeline streaming = tr.getPipeline("f").makeStreamingEvaluator();
+            final StreamingPipeline withFunction = new StreamingPipeline()
+                    .append(tr.getCompiledTransducer("g"))
+                    .append(x -> x.size() % 3 == 0 ? null : x.concat(new IntSeq("b")))
+                    .append(tr.getPipeline("f").makeStreamingEvaluator()::evaluate);
+            for (int i = 0; i < 200; i++) {
+                final IntSeq in = IntSeq.rand(0, 8, 'a', 'c', rnd);
+                final IntSeq exp = tr.getPipeline("f").evaluate(in);
+                assertEquals(code + "\ninput=" + in, exp, streaming.evaluate(in));
+                final StringWriter w = new StringWriter();
+                assertEquals(exp != null, tr.getPipeline("f").evaluate(new StringReader(in.toUnicodeString()), w));
+                if (exp != null) assertEquals(exp.toUnicodeString(), w.toString());
+                IntSeq expWithFunction = tr.getCompiledTransducer("g").evaluate(in);
+                if (expWithFunction != null && expWithFunction.size() % 3 == 0) expWithFunction = null;
+                if (expWithFunction != null) expWithFunction = tr.getPipeline("f").evaluate(expWithFunction.concat(new IntSeq("b")));
+                assertEquals(expWithFunction, withFunction.evaluate(in));
+            }
+        }
+    }
+
+    @Test
+    void testPipelined() throws Exception {
+        for (PipelineTestCase caze : pipelineCases()) {
+            final LexUnicodeSpecification.LexPipeline<?, ?> g = new CLI.OptimisedHashLexTransducer(caze.code, 0, Integer.MAX_VALUE, true).getPipeline("f");
+            final ArrayList<IntSeq> inputs = new ArrayList<>();
+            final ArrayList<IntSeq> expected = new ArrayList<>();
+            for (Positive pos : caze.ps) {
+                inputs.add(new IntSeq(pos.input));
+                expected.add(new IntSeq(pos.output));
+            }
+            for (String neg : caze.negative) {
+                inputs.add(new IntSeq(neg));
+                expected.add(null);
+            }
+            assertEquals(expected, g.evaluateAll(inputs));
+            assertEquals(expected, g.evaluatePipelined(inputs));
+        }
+        final Random rnd = new Random(13);
+        final ArrayList<IntSeq> many = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) many.add(IntSeq.rand(0, 8, 'a', 'c', rnd));
+        final List<Function<IntSeq, IntSeq>> functions = Arrays.asList(x -> x.concat(new IntSeq("a")), x -> x.size() % 2 == 0 ? null : x, x -> x.concat(x));
+        final List<IntSeq> pipelined = PipelinedEvaluation.evaluateAll(many, functions);
+        for (int i = 0; i < many.size(); i++) {
+            IntSeq exp = many.get(i);
+            for (Function<IntSeq, IntSeq> f : functions) exp = exp == null ? null : f.apply(exp);
+            assertEquals(exp, pipelined.get(i));
+        }
+        try {
+            PipelinedEvaluation.evaluateAll(many, Arrays.asList(x -> x, x -> {
+                throw new IllegalStateException("stage failed");
+            }));
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("stage failed", e.getMessage());
+        }
+    }
+
+    @Test
+    void testCompiled() throws Exception {
+        final String[] regexes = {"'a'", "'a':'b'", "('a')*", "'ab' | 'ab' 1", "'a' | 'ab'", "('abcd'|'012')*",
+                "([a-c]:<0> 'x':'yy')*", "'a':'1'|'aa':'2'|'aaa':'3'|'ab':'4'|'aab':'5'|'b':'6'|'':'7'",
+                "('a':'x' 1 | 'a':'y' 2)*", "([a-z]:'l' | 'a':'A' 3)*", "('a' 'b'*):'q' | 'a' 'b' 'c' 2",
+                "(('a':'1'|'b':'2') 1 | [a-b]:<0>)*", "('abc':'X' 2 | [a-c]:<0>)*"};
+        final Random rnd = new Random(7);
+        for (String regex : regexes) {
+            CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer("f = " + regex, 0, Integer.MAX_VALUE, true);
+            final Specification.RangedGraph<Pos, Integer, E, P> o = tr.getOptimisedTransducer("f");
+            final CompiledGraph c = tr.getCompiledTransducer("f");
+            final Evaluator ev = c.makeEvaluator();
+            // symbols 'a'-'c' are in the dense table and 'd'-'f' fall back to binary search
+            final CompiledGraph dense = c.withDenseTable('d');
+            final CompiledGraph classes = c.withAlphabetClasses();
+            // tiny caches force evictions
+            final LazyDfaEvaluator lazy = c.makeLazyDfaEvaluator(3);
+            final LazyDfaEvaluator lazyLarge = c.makeLazyDfaEvaluator(1000);
+            final ArrayList<IntSeq> inputs = new ArrayList<>();
+            final ArrayList<IntSeq> expected = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                final IntSeq in = IntSeq.rand(0, 8, 'a', 'f', rnd);
+                final IntSeq exp = tr.specs.evaluate(o, in);
+                assertEquals(regex + "\n" + c + "\ninput=" + in, exp, c.evaluate(in));
+                assertEquals(regex + "\n" + c + "\ninput=" + in, exp, ev.evaluate(in));
+                assertEquals(regex + "\n" + c + "\ninput=" + in, exp, dense.evaluate(in));
+                assertEquals(regex + "\n" + c + "\ninput=" + in, exp, classes.evaluate(in));
+                assertEquals(regex + "\n" + c + "\ninput=" + in, exp, lazy.evaluate(in));
+                assertEquals(regex + "\n" + c + "\ninput=" + in, exp, lazyLarge.evaluate(in));
+                assertEquals(regex + "\n" + c + "\ninput=" + in, exp, ev.evaluate(in.toUnicodeString()
+                        .codePoints().iterator()));
+                final String str = ev.evaluate(in.toUnicodeString());
+                assertEquals(regex + "\n" + c + "\ninput=" + in, exp, str == null ? null : new IntSeq(str));
+                final LexUnicodeSpecification.BacktrackingHead head = tr.specs.evaluateHead(o,
+                        new StringBuilder(in.toUnicodeString()));
+                assertEquals(regex + "\n" + c + "\ninput=" + in, exp, head == null ? null : head.collect(in, 0));
+                final int[] padded = new int[in.size() + 2];
+                for (int j = 0; j < in.size(); j++) padded[j + 1] = in.get(j);
+                final LexUnicodeSpecification.BacktrackingHead slice = tr.specs.evaluateHead(o, padded, 1, in.size());
+                assertEquals(regex + "\n" + c + "\ninput=" + in, exp, slice == null ? null : slice.collect(in, 0));
+                inputs.add(in);
+                expected.add(exp);
+            }
+            assertEquals(regex, expected, tr.evaluateAll("f", inputs));
+            final ArrayList<IntSeq> streamed = new ArrayList<>();
+            tr.evaluateAll("f", inputs.stream(), streamed::add);
+            assertEquals(regex, expected, streamed);
+        }
+        // graphs evaluated on this thread are not retained by it
+        java.lang.ref.WeakReference<CompiledGraph> weak = new java.lang.ref.WeakReference<>(
+                new CLI.OptimisedHashLexTransducer("f = 'a':'b'", 0, Integer.MAX_VALUE, true).getCompiledTransducer("f"));
+        assertEquals(new IntSeq("b"), weak.get().evaluate(new IntSeq("a")));
+        for (int i = 0; i < 50 && weak.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(weak.get());
+        // streams longer than a single chunk
+        final CompiledGraph g = new CLI.OptimisedHashLexTransducer("f = ('a':'x' | 'b')*", 0, Integer.MAX_VALUE, true)
+                .getCompiledTransducer("f");
+        final int n = 2 * BatchEvaluation.STREAMED_CHUNK + 5;
+        final ArrayList<IntSeq> streamed = new ArrayList<>();
+        g.evaluateAll(IntStream.range(0, n).mapToObj(i -> new IntSeq(i % 3 == 0 ? "ab" : "bc")), streamed::add);
+        assertEquals(n, streamed.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(i % 3 == 0 ? new IntSeq("x") : null, streamed.get(i));
+        }
+    }
+
+    @Test
+    void testLazyDfa() throws Exception {
+        final String source = "!!f = ('abc':'X' 2 | [a-c]:<0>)* g = ('ab':'X' 2 | [a-c]:<0>)* h = 'a':'b' "
+                + "@p = !!f ; ('X':'z' | [a-c])* ;";
+        final CLI.OptimisedHashLexTransducer reference = new CLI.OptimisedHashLexTransducer(source, 0, Integer.MAX_VALUE, true);
+        final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer(source, 0, Integer.MAX_VALUE, true);
+        assertTrue(tr.determinizeLazily("f"));
+        assertTrue(tr.determinizeLazily("g", 2));
+        assertFalse(tr.determinizeLazily("h"));
+        assertEquals(1, tr.getPipeline("p").determinizeLazily(4));
+        final FrozenLexTransducer frozen = tr.freeze();
+        final Random rnd = new Random(17);
+        final ArrayList<IntSeq> inputs = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            inputs.add(IntSeq.rand(0, 10, 'a', 'd', rnd));
+        }
+        for (String name : new String[]{"f", "g", "h"}) {
+            final List<IntSeq> expected = reference.evaluateAll(name, inputs);
+            assertEquals(name, expected, tr.evaluateAll(name, inputs));
+            assertEquals(name, expected, BatchEvaluation.evaluateAll(inputs, in -> frozen.run(name, in),
+                    ForkJoinPool.commonPool()));
+        }
+        final List<IntSeq> expected = reference.getPipeline("p").evaluateAll(inputs);
+        assertEquals(expected, tr.getPipeline("p").evaluateAll(inputs));
+        assertEquals(expected, frozen.getPipeline("p").evaluateAll(inputs));
+    }
+
+    @Test
+    void testOutputBuffers() throws Exception {
+        final String[] regexes = {"'a':'b'", "([a-c]:<0> 'x':'yy')*", "('a':'x' 1 | 'a':'y' 2)*",
+                "('abc':'X' 2 | [a-c]:<0>)*", "('a':'é€' | 'b':'😀' | 'c':'')*"};
+        final Random rnd = new Random(13);
+        for (String regex : regexes) {
+            CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer("f = " + regex, 0, Integer.MAX_VALUE, true);
+            final CompiledGraph c = tr.getCompiledTransducer("f");
+            final IntSeqBuilder ints = new IntSeqBuilder().append('#');
+            final StringBuilder sb = new StringBuilder("#");
+            final CharBuffer chars = CharBuffer.allocate(64);
+            final ByteBuffer bytes = ByteBuffer.allocate(64);
+            for (int i = 0; i < 200; i++) {
+                final IntSeq in = IntSeq.rand(0, 8, 'a', 'd', rnd);
+                final IntSeq exp = c.evaluate(in);
+                final String msg = regex + "\ninput=" + in;
+                final int before = ints.size();
+                final int len = c.evaluate(in, ints);
+                if (exp == null) {
+                    assertEquals(msg, Evaluator.REJECTED, len);
+                    assertEquals(msg, before, ints.size());
+                    assertEquals(msg, Evaluator.REJECTED, c.evaluate(in.toUnicodeString(), sb));
+                    assertEquals(msg, Evaluator.REJECTED, c.evaluate(in.toUnicodeString(), chars));
+                    assertEquals(msg, Evaluator.REJECTED, c.evaluate(in.toUnicodeString(), bytes));
+                    continue;
+                }
+                assertEquals(msg, exp, new IntSeq(Arrays.copyOfRange(ints.unsafe(), before, ints.size())));
+                assertEquals(msg, exp.size(), len);
+                final String expStr = exp.toUnicodeString();
+                final int sbBefore = sb.length();
+                assertEquals(msg, expStr.length(), c.evaluate(in.toUnicodeString(), sb));
+                assertEquals(msg, expStr, sb.substring(sbBefore));
+                chars.clear();
+                assertEquals(msg, expStr.length(), c.evaluate(in.toUnicodeString(), chars));
+                chars.flip();
+                assertEquals(msg, expStr, chars.toString());
+                bytes.clear();
+                final byte[] expBytes = expStr.getBytes(StandardCharsets.UTF_8);
+                assertEquals(msg, expBytes.length, c.evaluate(in.toUnicodeString(), bytes));
+                assertArrayEquals(msg, expBytes, Arrays.copyOf(bytes.array(), bytes.position()));
+                if (expBytes.length > 0) {
+                    final ByteBuffer small = ByteBuffer.allocate(expBytes.length - 1);
+                    assertEquals(msg, Evaluator.OVERFLOW, c.evaluate(in.toUnicodeString(), small));
+                    assertEquals(msg, 0, small.position());
+                    final CharBuffer smallChars = CharBuffer.allocate(expStr.length() - 1);
+                    assertEquals(msg, Evaluator.OVERFLOW, c.evaluate(in.toUnicodeString(), smallChars));
+                    assertEquals(msg, 0, smallChars.position());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testStreaming() throws Exception {
+        final String[] regexes = {"('a'|'b'|'c')* 'abc':'!'", "([a-c]:<0> | 'ab':'X' 2 | 'abc':'Y' 1)*",
+                "('abc':'X' 2 | [a-c]:<0>)*", "([a-c]:'l' | 'a':'A' 3)*", "('abc'|'b':'x')*"};
+        final Random rnd = new Random(11);
+        for (String regex : regexes) {
+            CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer("f = " + regex, 0, Integer.MAX_VALUE, true);
+            final CompiledGraph c = tr.getCompiledTransducer("f");
+            final StreamingEvaluator se = new StreamingEvaluator(c);
+            for (int i = 0; i < 20; i++) {
+                // long inputs force compaction of backtracking history
+                final IntSeq in = IntSeq.rand(0, 5000, 'a', 'c', rnd).concat(new IntSeq(i % 2 == 0 ? "abc" : ""));
+                final IntSeq exp = c.evaluate(in);
+                final IntSeqBuilder out = new IntSeqBuilder();
+                se.begin(out::append);
+                for (int j = 0; j < in.size() && se.feed(in.at(j)); j++) ;
+                final boolean accepted = se.finish();
+                assertEquals(regex + "\ninput=" + in, exp, accepted ? out.toIntSeq() : null);
+                final StringWriter w = new StringWriter();
+                assertEquals(exp != null, se.evaluate(new StringReader(in.toUnicodeString()), w));
+                if (exp != null) assertEquals(exp.toUnicodeString(), w.toString());
+            }
+        }
+    }
+
+    @Test
+    void testTokenizer() throws Exception {
+        final String[] regexes = {"'a':'1'|'aa':'2'|'aaa':'3'|'ab':'4'|'aab':'5'|'b':'6'", "('ab'|'c':'x')*",
+                "[a-c]:<0> 'x':'yy' | 'b' 'a'* : 'B'", "('a':'x' 1 | 'a':'y' 2)*", "'a' | 'ab' | 'abc':'X' 2"};
+        final Random rnd = new Random(13);
+        for (String regex : regexes) {
+            CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer("f = " + regex, 0, Integer.MAX_VALUE, true);
+            final CompiledGraph c = tr.getCompiledTransducer("f");
+            final Tokenizer tokenizer = new Tokenizer(c);
+            for (int i = 0; i < 200; i++) {
+                final IntSeq text = IntSeq.rand(0, 20, 'a', 'd', rnd);
+                final ArrayList<String> expected = new ArrayList<>();
+                for (int pos = 0; pos < text.size(); ) {
+                    int len = text.size() - pos;
+                    IntSeq out = null;
+                    for (; len > 0 && (out = c.evaluate(text.sub(pos, pos + len))) == null; len--) ;
+                    expected.add(len == 0 ? "!" + pos : pos + "-" + (pos + len) + ":" + out);
+                    pos += Math.max(len, 1);
+                }
+                final ArrayList<String> got = new ArrayList<>();
+                final Tokenizer.TokenListener listener = new Tokenizer.TokenListener() {
+                    @Override
+                    public void token(int from, int to, IntSeq output) {
+                        got.add(from + "-" + to + ":" + output);
+                    }
+
+                    @Override
+                    public void unmatched(int position, int symbol) {
+                        got.add("!" + position);
+                    }
+                };
+                tokenizer.tokenize(text, listener);
+                assertEquals(regex + "\n" + text, expected, got);
+                got.clear();
+                tokenizer.tokenize(text.toUnicodeString(), listener);
+                assertEquals(regex + "\n" + text, expected, got);
+            }
+        }
+    }
+
+    @Test
+    void testUtf8() throws Exception {
+        final String[] regexes = {"(.:<0>)*", "(<128-2047>:'2' | <2048-65535>:'3' | <65536-1114111>:'4' | <1-127>:'1')*",
+                "(<256-512>:<0> | 'a':'A' | <55000-57344>:'Q' | <65530-70000>:<0>)*",
+                "((<128-2047>:'2' 2 | <2000-3000>:<0> 3 | <1-127>:'1' | <50000-1114111>:'x' | <60000-70000>:'y' 1))*"};
+        final int[] symbols = {'a', 'z', 0x7F, 0x80, 0x1FF, 0x200, 0x7FF, 0x800, 0xBB8, 0xD7FF, 0xE000, 0xFFFF,
+                0x10000, 0x1117F, 0x10FFFF};
+        final Random rnd = new Random(17);
+        for (String regex : regexes) {
+            CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer("f = " + regex, 0, Integer.MAX_VALUE, true);
+            final CompiledGraph utf8 = tr.getCompiledTransducer("f").toUtf8();
+            for (int i = 0; i < 500; i++) {
+                final int[] arr = new int[rnd.nextInt(6)];
+                for (int j = 0; j < arr.length; j++) arr[j] = symbols[rnd.nextInt(symbols.length)];
+                final IntSeq in = new IntSeq(arr);
+                final byte[] bytes = in.toUnicodeString().getBytes(StandardCharsets.UTF_8);
+                final IntSeq exp = tr.specs.evaluate(tr.getOptimisedTransducer("f"), in);
+                assertEquals(regex + "\ninput=" + in, exp, utf8.evaluate(ByteBuffer.wrap(bytes)));
+                if (bytes.length > 0 && bytes[bytes.length - 1] < 0) {
+                    assertNull(utf8.evaluate(ByteBuffer.wrap(bytes, 0, bytes.length - 1)));
+                }
+            }
+            // overlong encoding and surrogate
+            assertNull(utf8.evaluate(ByteBuffer.wrap(new byte[]{(byte) 0xC0, (byte) 0x81})));
+            assertNull(utf8.evaluate(ByteBuffer.wrap(new byte[]{(byte) 0xED, (byte) 0xA0, (byte) 0x80})));
+        }
+    }
+
+    @Test
+    void testSpecialized() throws Exception {
+        final String[] regexes = {"('abcd'|'012')*", "([a-c]:<0> 'x':'yy')*", "('a':'x' 1 | 'a':'y' 2)*",
+                "(('a'('b'|'e'|'f')*'c')):'tre'", "identity[('a':'0'|'b':'1'|'c':'2'|'d':'3')*] 'e':'longer output'",
+                "([a-b]:'1' | 'c':'2' | 'd':<0> | 'e':'3' | 'f':'4' | [g-z]:'5')*"};
+        final Random rnd = new Random(19);
+        for (String regex : regexes) {
+            CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer("f = " + regex, 0, Integer.MAX_VALUE, true);
+            assertTrue(regex, tr.specialize("f"));
+            final CompiledGraph c = tr.getCompiledTransducer("f");
+            for (int i = 0; i < 500; i++) {
+                final IntSeq in = IntSeq.rand(0, 8, 'a', 'f', rnd);
+                assertEquals(regex + "\n" + c + "\ninput=" + in, c.evaluate(in), tr.run("f", in));
+            }
+        }
+        CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer("f = 'a' | 'ab'", 0, Integer.MAX_VALUE, true);
+        assertFalse(tr.specialize("f"));
+        assertEquals("", tr.run("f", "a"));
+        // specializing while other threads run the transducer
+        final CLI.OptimisedHashLexTransducer concurrent = new CLI.OptimisedHashLexTransducer("f = ('a':'x' | 'b')* g = [a-b]*",
+                0, Integer.MAX_VALUE, true);
+        final List<IntSeq> inputs = Collections.nCopies(20000, new IntSeq("abab"));
+        final Thread specializing = new Thread(() -> {
+            concurrent.specialize("g");
+            concurrent.specialize("f");
+        });
+        specializing.start();
+        assertEquals(Collections.nCopies(20000, new IntSeq("xx")), concurrent.evaluateAll("f", inputs));
+        specializing.join();
+    }
+
+    @Test
+    void testCache() throws Exception {
+        final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer(checkSyntax("f = ('a':'x' 1 | 'a':'y' 2 | 'b')*\n" +
+                "@p = 'a':'b' | 'b':'c' ; 'b':'d' ;"), 0, Integer.MAX_VALUE, true);
+        final CompiledGraph c = tr.getCompiledTransducer("f");
+        tr.setCacheCapacity("f", 8);
+        final IntSeq[] inputs = new IntSeq[64];
+        final Random rnd = new Random(23);
+        for (int i = 0; i < inputs.length; i++) inputs[i] = IntSeq.rand(0, 4, 'a', 'c', rnd);
+        final Thread[] threads = new Thread[4];
+        final AssertionError[] failure = new AssertionError[1];
+        for (int t = 0; t < threads.length; t++) {
+            final Random threadRnd = new Random(t);
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        // skewed towards the first inputs
+                        final IntSeq in = inputs[Math.min(threadRnd.nextInt(inputs.length), threadRnd.nextInt(inputs.length))];
+                        assertEquals(c.evaluate(in), tr.run("f", in));
+                    }
+                } catch (AssertionError e) {
+                    failure[0] = e;
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        if (failure[0] != null) throw failure[0];
+        final EvaluationCache cache = tr.getCache("f");
+        assertEquals(threads.length * 2000, cache.getHits() + cache.getMisses());
+        assertTrue(cache.getHits() > 0 && cache.getEvictions() > 0);
+        assertTrue(cache.size() <= 8);
+        final LexUnicodeSpecification.LexPipeline<?, ?> p = tr.getPipeline("p");
+        p.setCacheCapacity(2);
+        assertEquals("d", p.evaluate("a"));
+        assertEquals("d", p.evaluate("a"));
+        assertNull(p.evaluate("b"));
+        assertNull(p.evaluate("b"));
+        assertEquals(2, p.getCache().getHits());
+        assertEquals(2, p.getCache().getMisses());
+    }
+
+    @Test
+    void testFreeze() throws Exception {
+        final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer(checkSyntax("f = ('a':'x' 1 | 'a':'y' 2 | 'b')*\n" +
+                "g = ('abcd'|'012')*\n@p = 'a':'b' | 'b':'c' ; 'b':'d' | 'c':'e' ; @identity!() ;"), 0, Integer.MAX_VALUE, true);
+        tr.setCacheCapacity("f", 8);
+        tr.getPipeline("p").setCacheCapacity(4);
+        assertTrue(tr.specialize("g"));
+        final FrozenLexTransducer frozen = tr.freeze();
+        assertTrue(frozen.getTransducerNames().containsAll(Arrays.asList("f", "g")));
+        assertEquals(Collections.singleton("p"), frozen.getPipelineNames());
+        final Random rnd = new Random(29);
+        for (int i = 0; i < 200; i++) {
+            final IntSeq in = IntSeq.rand(0, 6, 'a', 'd', rnd);
+            assertEquals(tr.run("f", in), frozen.run("f", in));
+            assertEquals(tr.run("g", in), frozen.run("g", in));
+            assertEquals(tr.run("f", in), frozen.run("f", ByteBuffer.wrap(in.toUnicodeString().getBytes(StandardCharsets.UTF_8))));
+            assertEquals(tr.getPipeline("p").evaluate(in), frozen.getPipeline("p").evaluate(in));
+        }
+        assertEquals(200, frozen.getCache("f").getHits() + frozen.getCache("f").getMisses());
+        assertNotNull(frozen.getPipeline("p").getCache());
+        assertNull(frozen.getCache("g"));
+        assertEquals("d", frozen.getPipeline("p").makeStreamingEvaluator().evaluate("a"));
+        for (Object o : reachable(frozen)) {
+            assertFalse(o.getClass().getName(), o instanceof LexUnicodeSpecification
+                    || o instanceof LexUnicodeSpecification.LexPipeline || o instanceof Specification.RangedGraph
+                    || o instanceof IntermediateGraph || o.getClass().getName().endsWith("$AutomatonNode"));
+        }
+    }
+
+    /**
+     * All objects reachable from the root through fields, arrays and collections. Fields of JDK classes
+     * (other than collections) are not followed.
+     */
+    static Set<Object> reachable(Object root) throws IllegalAccessException {
+        final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        final ArrayDeque<Object> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            final Object o = stack.pop();
+            if (!visited.add(o)) continue;
+            final ArrayList<Object> children = new ArrayList<>();
+            if (o instanceof Object[]) {
+                children.addAll(Arrays.asList((Object[]) o));
+            } else if (o instanceof Map) {
+                children.addAll(((Map<?, ?>) o).keySet());
+                children.addAll(((Map<?, ?>) o).values());
+            } else if (o instanceof Collection) {
+                children.addAll((Collection<?>) o);
+            } else if (!o.getClass().getName().startsWith("java.")) {
+                for (Class<?> c = o.getClass(); c != null; c = c.getSuperclass()) {
+                    for (java.lang.reflect.Field field : c.getDeclaredFields()) {
+                        if (field.getType().isPrimitive() || java.lang.reflect.Modifier.isStatic(field.getModifiers()))
+                            continue;
+                        field.setAccessible(true);
+                        children.add(field.get(o));
+                    }
+                }
+            }
+            for (Object child : children) {
+                if (child != null) stack.push(child);
+            }
+        }
+        return visited;
+    }
+
+    @Test
+    void testServer() throws Exception {
+        final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer(checkSyntax("f = 'a':'x\\ty' | 'b'\n" +
+                "@p = 'a':'b' ; 'b':'d' ;\n@q = @failing!() ;"), 0, Integer.MAX_VALUE, true, (name, args) -> x -> {
+            throw new IllegalStateException("stage\tfailed");
+        });
+        try (EvaluationServer server = new EvaluationServer(tr.freeze(), 0);
+             Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            final Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            // all requests are sent before reading any response
+            out.write("f\ta\nf\tb\nf\tc\n@p\ta\ng\ta\nf\n@q\ta\nf\ta\n");
+            out.flush();
+            assertEquals("OK\tx\\ty", in.readLine());
+            assertEquals("OK\t", in.readLine());
+            assertEquals("REJECTED", in.readLine());
+            assertEquals("OK\td", in.readLine());
+            assertEquals("ERROR\tNo such function!", in.readLine());
+            assertTrue(in.readLine().startsWith("ERROR"));
+            // the connection survives failing external functions
+            assertEquals("ERROR\tstage\\tfailed", in.readLine());
+            assertEquals("OK\tx\\ty", in.readLine());
+            // over-long request is skipped without closing the connection
+            final char[] huge = new char[EvaluationServer.MAX_REQUEST_LENGTH + 10000];
+            Arrays.fill(huge, 'a');
+            huge[0] = 'f';
+            huge[1] = '\t';
+            out.write(huge);
+            out.write("\nf\ta\r\n");
+            out.flush();
+            assertEquals("ERROR\tRequest too long!", in.readLine());
+            assertEquals("OK\tx\\ty", in.readLine());
+        }
+        final EvaluationServer.LineReader lines = new EvaluationServer.LineReader(new StringReader("abc\r\nabcd\n\nab"));
+        final StringBuilder line = new StringBuilder();
+        assertEquals(EvaluationServer.LineReader.LINE, lines.readLine(line, 3));
+        assertEquals("abc", line.toString());
+        assertEquals(EvaluationServer.LineReader.TOO_LONG, lines.readLine(line, 3));
+        assertEquals(EvaluationServer.LineReader.LINE, lines.readLine(line, 3));
+        assertEquals("", line.toString());
+        assertEquals(EvaluationServer.LineReader.LINE, lines.readLine(line, 3));
+        assertEquals("ab", line.toString());
+        assertEquals(EvaluationServer.LineReader.END_OF_STREAM, lines.readLine(line, 3));
+        assertEquals("a\tb\\n\n", EvaluationServer.unescape(EvaluationServer.escape("a\tb\\n\n")));
+    }
+
+    @Test
+    void testFileBatch() throws Exception {
+        final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer("f = ('a':'x' | 'b':'\\n')*", 0, Integer.MAX_VALUE, true);
+        final Path dir = Files.createTempDirectory("batch");
+        final Path in = dir.resolve("in.txt");
+        final Path out = dir.resolve("out.txt");
+        final StringBuilder lines = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        final StringBuilder expectedColumns = new StringBuilder();
+        final Random rnd = new Random(31);
+        for (int i = 0; i < 40000; i++) {
+            final IntSeq record = IntSeq.rand(0, 5, 'a', 'd', rnd);
+            final IntSeq output = tr.run("f", record);
+            lines.append(i).append('\t').append(record.toUnicodeString()).append('\n');
+            final String escaped = output == null ? "REJECTED" : "OK\t" + EvaluationServer.escape(output.toUnicodeString());
+            expected.append(escaped).append('\n');
+            expectedColumns.append(i).append('\t').append(record.toUnicodeString()).append('\t').append(escaped).append('\n');
+        }
+        Files.write(in, lines.toString().getBytes(StandardCharsets.UTF_8));
+        FileBatchEvaluation.Result result = FileBatchEvaluation.evaluate(in, out, x -> tr.run("f", x), 1, ForkJoinPool.commonPool());
+        assertEquals(40000, result.records);
+        assertTrue(result.rejected > 0);
+        assertEquals(expectedColumns.toString(), new String(Files.readAllBytes(out), StandardCharsets.UTF_8));
+        Files.write(in, lines.toString().replaceAll("(?m)^[0-9]+\t", "").getBytes(StandardCharsets.UTF_8));
+        result = FileBatchEvaluation.evaluate(in, out, x -> tr.run("f", x), -1, ForkJoinPool.commonPool());
+        assertEquals(40000, result.records);
+        assertEquals(expected.toString(), new String(Files.readAllBytes(out), StandardCharsets.UTF_8));
+        // empty output is distinguishable from rejection
+        Files.write(in, "\nc\nbb\n".getBytes(StandardCharsets.UTF_8));
+        FileBatchEvaluation.evaluate(in, out, x -> tr.run("f", x), -1, ForkJoinPool.commonPool());
+        assertEquals("OK\t\nREJECTED\nOK\t\\n\\n\n", new String(Files.readAllBytes(out), StandardCharsets.UTF_8));
+        Files.delete(in);
+        Files.delete(out);
+        Files.delete(dir);
+    }
+
+    @Test
+    void testExportOptimised() throws Exception {
+        final String[] regexes = {"'a':'b'", "([a-c]:<0> 'x':'yy')*", "('a':'x' 1 | 'a':'y' 2)*",
+                "('abc':'X' 2 | [a-c]:<0>)* 'd':'!'", "'' : 'eps' | 'a' 'b'*"};
+        final Random rnd = new Random(37);
+        for (String regex : regexes) {
+            final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer("f = " + regex, 0, Integer.MAX_VALUE, true);
+            final Specification.RangedGraph<Pos, Integer, E, P> o = tr.getOptimisedTransducer("f");
+            final Path file = Files.createTempFile("optimised", ".star");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+                tr.specs.compressOptimised(o, out);
+            }
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+                assertEquals(regex, o.toString(), tr.specs.decompressOptimised(Pos.NONE, in).toString());
+            }
+            final CLI.OptimisedHashLexTransducer loaded = new CLI.OptimisedHashLexTransducer(
+                    "g = import!('" + file + "') h = import!('" + file + "') 'z'", 0, Integer.MAX_VALUE, true);
+            // g is loaded without optimising it again, while h has to be optimised from scratch
+            assertEquals(regex, o.toString(), loaded.getOptimisedTransducer("g").toString());
+            for (int i = 0; i < 200; i++) {
+                final IntSeq in = IntSeq.rand(0, 8, 'a', 'e', rnd);
+                final IntSeq exp = tr.run("f", in);
+                assertEquals(regex + "\ninput=" + in, exp, loaded.run("g", in));
+                assertEquals(regex + "\ninput=" + in, exp,
+                        loaded.run("h", in.concat(new IntSeq("z"))));
+            }
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void testMappedTransducer() throws Exception {
+        final String[] regexes = {"'a':'b'", "([a-c]:<0> 'x':'yy')*", "('ab':'X' | 'c':'Y')* 'd':'!'",
+                "'' : 'eps' | 'a' 'b'*"};
+        final Random rnd = new Random(41);
+        for (String regex : regexes) {
+            final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer("f = " + regex, 0, Integer.MAX_VALUE, true);
+            final CompiledGraph c = tr.getCompiledTransducer("f");
+            assertTrue(regex, c.isDeterministic());
+            final Path file = Files.createTempFile("mapped", ".star");
+            MappedTransducer.write(c, file);
+            final MappedTransducer m = MappedTransducer.open(file);
+            assertEquals(regex, c.size(), m.size());
+            final CLI.OptimisedHashLexTransducer loaded = new CLI.OptimisedHashLexTransducer(
+                    "g = import!('" + file + "') h = import!('" + file + "') 'z'", 0, Integer.MAX_VALUE, true);
+            final IntSeqBuilder out = new IntSeqBuilder();
+            for (int i = 0; i < 200; i++) {
+                final IntSeq in = IntSeq.rand(0, 8, 'a', 'e', rnd);
+                final IntSeq exp = c.evaluate(in);
+                assertEquals(regex + "\ninput=" + in, exp, m.evaluate(in));
+                out.clear();
+                assertEquals(regex + "\ninput=" + in, exp == null ? Evaluator.REJECTED : exp.size(), m.evaluate(in.unsafe(), in.offset(), in.size(), out));
+                assertEquals(regex + "\ninput=" + in, exp == null ? 0 : exp.size(), out.size());
+                assertEquals(regex + "\ninput=" + in, exp, loaded.run("g", in));
+                assertEquals(regex + "\ninput=" + in, exp, loaded.run("h", in.concat(new IntSeq("z"))));
+            }
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void testExportCompact() throws Exception {
+        final String[] regexes = {"'a':'b'", "([a-c]:<0> 'x':'yy')*", "('a':'x' 1 | 'a':'y' 2)*",
+                "('abc':'X' 2 | [a-c]:<0>)* 'd':'!'", "'' : 'eps' | 'a' 'b'* | [b-z]:'w'"};
+        final Random rnd = new Random(43);
+        for (String regex : regexes) {
+            final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer("f = " + regex, 0, Integer.MAX_VALUE, true);
+            for (boolean deflate : new boolean[]{false, true}) {
+                final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+                tr.specs.compressBinary(tr.getTransducer("f").graph, new DataOutputStream(plain));
+                final ByteArrayOutputStream compact = new ByteArrayOutputStream();
+                tr.specs.compressCompact(tr.getTransducer("f").graph, compact, deflate);
+                assertTrue(regex, compact.size() < plain.size());
+                final Path file = Files.createTempFile("compact", ".star");
+                Files.write(file, compact.toByteArray());
+                final CLI.OptimisedHashLexTransducer loaded = new CLI.OptimisedHashLexTransducer(
+                        "g = import!('" + file + "')", 0, Integer.MAX_VALUE, true);
+                for (int i = 0; i < 200; i++) {
+                    final IntSeq in = IntSeq.rand(0, 8, 'a', 'e', rnd);
+                    assertEquals(regex + "\ninput=" + in, tr.run("f", in), loaded.run("g", in));
+                }
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void testSnapshot() throws Exception {
+        final LexUnicodeSpecification.ExternalPipelineFunction suffix = (name, args) -> x -> x.concat(args.get(0).l());
+        final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer(checkSyntax(
+                "f = ('a':'x' 1 | 'a':'y' 2 | [b-c]:<0>)* !!g = 'ab':'c' | 'b' h = g 'x':'z' " +
+                        "@p = 'a':'b' | 'b':'c' ; @suffix!('x') ; 'bx':'y' | 'cx':'z' {'y' | 'z'} " +
+                        "@q = 'a':'b' {'b'}"), 0, Integer.MAX_VALUE, true, suffix);
+        tr.getPipeline("p").setCacheCapacity(16);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        tr.saveSnapshot(new DataOutputStream(bytes));
+        final CLI.OptimisedHashLexTransducer loaded = new CLI.OptimisedHashLexTransducer(true, 0, Integer.MAX_VALUE, suffix);
+        loaded.loadSnapshot(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(tr.specs.variableAssignments.keySet(), loaded.specs.variableAssignments.keySet());
+        assertTrue(loaded.specs.borrowVariable("g").alwaysCopy);
+        assertEquals(16, loaded.getPipeline("p").getCache().getCapacity());
+        final Random rnd = new Random(47);
+        for (int i = 0; i < 200; i++) {
+            final IntSeq in = IntSeq.rand(0, 6, 'a', 'e', rnd);
+            for (String name : new String[]{"f", "g", "h"}) {
+                assertEquals(name + " " + in, tr.run(name, in), loaded.run(name, in));
+            }
+            assertEquals("p " + in, tr.getPipeline("p").evaluate(in), loaded.getPipeline("p").evaluate(in));
+        }
+        assertEquals("b", loaded.getPipeline("q").evaluate("a"));
+        // the restored assertion of @q is still checked when @q is appended to other pipelines
+        loaded.parse(CharStreams.fromString(checkSyntax("@r = @q ; 'b':'c' ; u = !!g 'a'")));
+        loaded.checkStrongFunctionality();
+        assertEquals("c", loaded.getPipeline("r").evaluate("a"));
+        assertEquals("c", loaded.run("u", "aba"));
+    }
+
+    @Test
+    void testCompilationCache() throws Exception {
+        final Path dir = Files.createTempDirectory("cache");
+        final Path exported = Files.createTempFile("cached", ".star");
+        try {
+            final CLI.OptimisedHashLexTransducer imported = new CLI.OptimisedHashLexTransducer("f = 'a':'b' | 'b':'c'", 0, Integer.MAX_VALUE, true);
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(exported))) {
+                imported.specs.compressOptimised(imported.getOptimisedTransducer("f"), out);
+            }
+            final String source = "!!a = ('a':'x' 1 | 'a':'y' 2 | 'b')* b = !!a 'c':'z' c = [d-e]:'q' " +
+                    "d = import!('" + exported + "') 'c' e = d | 'cc':<0> ";
+            final int definitions = 5;
+            final String[] names = {"a", "b", "c", "e"}; // d is consumed by e
+            final String[] edited = {source, source.replace("[d-e]:'q'", "[d-e]:'r'"),
+                    source.replace("'a':'y' 2", "'a':'y' 3"), source};
+            // editing c affects only c, editing a affects a and b, changing imported file affects d and e
+            final int[] expectedHits = {0, 4, 3, 3};
+            for (int version = 0; version < edited.length; version++) {
+                if (version == 3) {
+                    final CLI.OptimisedHashLexTransducer changed = new CLI.OptimisedHashLexTransducer("f = 'a':'c' | 'b':'c'", 0, Integer.MAX_VALUE, true);
+                    try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(exported))) {
+                        changed.specs.compressOptimised(changed.getOptimisedTransducer("f"), out);
+                    }
+                }
+                final CLI.OptimisedHashLexTransducer reference = new CLI.OptimisedHashLexTransducer(edited[version], 0, Integer.MAX_VALUE, true);
+                final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer(0, Integer.MAX_VALUE);
+                final CompilationCache<?, ?> cache = tr.enableCompilationCache(dir);
+                tr.parse(CharStreams.fromString(edited[version]));
+                tr.checkStrongFunctionality();
+                assertEquals(edited[version], expectedHits[version], cache.getHits());
+                assertEquals(edited[version], definitions - expectedHits[version], cache.getMisses());
+                final Random rnd = new Random(53);
+                for (int i = 0; i < 200; i++) {
+                    final IntSeq in = IntSeq.rand(0, 6, 'a', 'f', rnd);
+                    for (String name : names) {
+                        assertEquals(name + " " + in, reference.run(name, in), tr.run(name, in));
+                    }
+                }
+            }
+            // linear variables are still consumed by restored definitions
+            final CLI.OptimisedHashLexTransducer tr = new CLI.OptimisedHashLexTransducer(0, Integer.MAX_VALUE);
+            tr.enableCompilationCache(dir);
+            tr.parse(CharStreams.fromString(source));
+            assertNull(tr.specs.borrowVariable("d"));
+            // damaged entries that fail to decode with unchecked exceptions are rebuilt
+            final ByteArrayOutputStream damaged = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(damaged)) {
+                out.writeInt(LexUnicodeSpecification.OPTIMISED_MAGIC);
+                out.writeInt(1);//version
+                out.writeInt(1);//size
+                out.writeInt(0);//initial
+                out.writeBoolean(false);//isAccepting
+                out.writeInt(0);//edgeNumber
+                out.writeInt(1);//rangeNumber
+                out.writeInt(Integer.MAX_VALUE);//input
+                out.writeInt(1);//transNumber
+                out.writeInt(7);//edge index out of bounds
+                out.writeInt(0);//target
+            }
+            try (Stream<Path> entries = Files.list(dir)) {
+                for (Path entry : (Iterable<Path>) entries::iterator) Files.write(entry, damaged.toByteArray());
+            }
+            final CLI.OptimisedHashLexTransducer reference = new CLI.OptimisedHashLexTransducer(source, 0, Integer.MAX_VALUE, true);
+            final CLI.OptimisedHashLexTransducer rebuilt = new CLI.OptimisedHashLexTransducer(0, Integer.MAX_VALUE);
+            final CompilationCache<?, ?> cache = rebuilt.enableCompilationCache(dir);
+            rebuilt.parse(CharStreams.fromString(source));
+            assertEquals(0, cache.getHits());
+            assertEquals(definitions, cache.getMisses());
+            final Random rnd = new Random(59);
+            for (int i = 0; i < 200; i++) {
+                final IntSeq in = IntSeq.rand(0, 6, 'a', 'f', rnd);
+                for (String name : names) {
+                    assertEquals(name + " " + in, reference.run(name, in), rebuilt.run(name, in));
+                }
+            }
+        } finally {
+            try (Stream<Path> entries = Files.list(dir)) {
+                for (Path entry : (Iterable<Path>) entries::iterator) Files.delete(entry);
+            }
+            Files.delete(dir);
+            Files.delete(exported);
+        }
+    }
 }